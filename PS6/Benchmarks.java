@@ -0,0 +1,483 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Microbenchmarks of the hot paths: the Sketch's changes and lookups, the shapes' hit tests, and parsing and applying
+ * what clients send, at a range of sketch sizes and stroke lengths. Each benchmark is run for a few warmup iterations,
+ * then measured over a few more; each iteration runs batches of operations for about a fixed time, with anything
+ * needed to start a batch over (e.g. putting the sketch back as it was) done outside the timing.
+ * Reports time per operation (mean and spread over the iterations), bytes allocated per operation and the allocation
+ * rate (counted per thread, as the JVM tracks it for its own profilers), and how many collections ran, so regressions
+ * in both time and garbage show up.
+ *
+ * Each benchmark is run at each size in a JVM of its own, started with the same java, classpath and JVM options as
+ * this one, so what the JIT learned (and inlined, or gave up on) running one doesn't skew the ones after it, and one's
+ * garbage isn't collected on another's time. That costs a JVM start and setting the sketch up again for each.
+ *
+ * Usage: java Benchmarks [name filter], configurable with -Dbench.sizes=10,1000,100000,1000000 (shapes in the sketch),
+ * -Dbench.strokes=100,10000,1000000 (points in a stroke), -Dbench.warmup=... -Dbench.iterations=... (how many of each),
+ * -Dbench.millis=... (how long an iteration runs), -Dbench.fork=false (run everything in this JVM, e.g. to profile it).
+ * The biggest sizes want a heap of a gigabyte or so (-Xmx1g).
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class Benchmarks {
+	private static final int[] SIZES = ints(System.getProperty("bench.sizes", "10,1000,100000,1000000"));
+	private static final int[] STROKES = ints(System.getProperty("bench.strokes", "100,10000,1000000"));
+	private static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+	private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+	private static final long MILLIS = Integer.getInteger("bench.millis", 500);
+	private static final boolean FORK = Boolean.parseBoolean(System.getProperty("bench.fork", "true"));
+	private static final String FORKED = "--forked";	// first argument of a JVM started to run just one benchmark
+
+	// every benchmark, by what it's run over
+	private static final String[] SKETCH = {"Sketch.addShape", "Sketch.deleteShape", "Sketch.moveShapeTo",
+			"Sketch.mouseInShape", "Sketch.drawAllShapes (window)", "Sketch.drawAllShapes (tile)"};
+	private static final String[] GEOMETRY = {"Ellipse.contains", "Segment.pointToSegmentDistance"};
+	private static final String[] STROKE = {"Polyline.contains"};
+	private static final String[] PARSING = {"Command.parse + processCommand (add)", "Command.parse + processCommand (move)",
+			"BinaryProtocol.decode + processCommand (add)", "BinaryProtocol.decode + processCommand (move)"};
+	private static final String[] STROKE_PARSING = {"Command.parse (freehand)", "BinaryProtocol.decode (freehand)",
+			"BinaryProtocol.decode + processCommand (freehand)"};
+
+	private static final int BATCH = 1024;		// operations per batch, for the quick ones
+	private static final int VIEW_WIDTH = 800, VIEW_HEIGHT = 600;	// size of an editor's window
+	private static final int TILE = 256;		// size of a tile of the editor's cached layer
+
+	private static String filter = "";			// only run benchmarks whose names contain this
+	private static String only = null;			// in a forked JVM, the one benchmark to run...
+	private static int onlyParam;				// ...and what to run it over
+	private static volatile long sink;			// where results go, so the JIT can't throw the work away
+
+	/**
+	 * Operations to time, e.g. a loop calling the method being measured
+	 */
+	private interface Batch {
+		/**
+		 * @param ops how many operations to run
+		 * @return something computed from the results, to be kept
+		 */
+		long run(int ops) throws Exception;
+	}
+
+	/**
+	 * Benchmarks that share their setup, run over one size or length
+	 */
+	private interface Group {
+		void run(int param) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 3 && args[0].equals(FORKED)) {
+			only = args[1];
+			onlyParam = Integer.parseInt(args[2]);
+		}
+		else {
+			if (args.length > 0) filter = args[0];
+			System.out.println(String.format("%-50s %-14s %14s %10s %12s %10s %6s",
+					"benchmark", "param", "ns/op", "+-", "B/op", "MB/s", "gcs"));
+		}
+
+		for (int size : SIZES) {
+			run(SKETCH, size, Benchmarks::sketchBenchmarks);
+		}
+		run(GEOMETRY, 0, param -> geometryBenchmarks());
+		for (int length : STROKES) {
+			run(STROKE, length, Benchmarks::strokeBenchmarks);
+		}
+		run(PARSING, 0, param -> parsingBenchmarks());
+		for (int length : STROKES) {
+			run(STROKE_PARSING, length, Benchmarks::strokeParsingBenchmarks);
+		}
+	}
+
+	/**
+	 * Runs the group's wanted benchmarks over param: each in a JVM of its own, unless told not to fork
+	 * (or this is the JVM forked to run just one of them)
+	 */
+	private static void run(String[] names, int param, Group group) throws Exception {
+		if (only != null) {
+			if (param == onlyParam && Arrays.asList(names).contains(only)) group.run(param);
+			return;
+		}
+		if (!FORK) {
+			group.run(param);
+			return;
+		}
+		for (String name : names) {
+			if (wanted(name)) fork(name, param);
+		}
+	}
+
+	/**
+	 * Runs just the one benchmark over param in a new JVM, which prints its results here
+	 */
+	private static void fork(String name, int param) throws Exception {
+		List<String> command = new ArrayList<>();
+		command.add(ProcessHandle.current().info().command()
+				.orElse(Paths.get(System.getProperty("java.home"), "bin", "java").toString()));
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.addAll(List.of("-cp", System.getProperty("java.class.path"), Benchmarks.class.getName(),
+				FORKED, name, Integer.toString(param)));
+		int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+		if (exit != 0) System.err.println(name + " (" + param + ") failed, exit status " + exit);
+	}
+
+	/**
+	 * Sketch's changes, hit test and drawing, on a sketch of the given size; the canvas grows with the sketch,
+	 * so shapes stay about as crowded as on an editor's window with a thousand of them
+	 */
+	private static void sketchBenchmarks(int size) throws Exception {
+		if (!wanted(SKETCH)) return;
+		Random random = new Random(42);
+		int side = canvas(size);
+		Sketch sketch = new Sketch();
+		for (int i = 0; i < size; i++) {
+			sketch.addShape(sketch.getAvailID(), randomShape(random, side));
+		}
+		SketchSnapshot base = sketch.snapshot();
+		String param = "size=" + size;
+
+		Shape[] added = new Shape[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			added[i] = randomShape(random, side);
+		}
+		measure("Sketch.addShape", param, () -> sketch.load(base), ops -> {
+			long version = 0;
+			for (int i = 0; i < ops; i++) {
+				version += sketch.addShape(size + i, added[i]);
+			}
+			return version;
+		}, BATCH);
+
+		int[] IDs = distinctIDs(random, size, Math.min(size, BATCH));
+		measure("Sketch.deleteShape", param, () -> sketch.load(base), ops -> {
+			long version = 0;
+			for (int i = 0; i < ops; i++) {
+				version += sketch.deleteShape(IDs[i]);
+			}
+			return version;
+		}, IDs.length);
+
+		sketch.load(base);
+		int[] xs = randoms(random, BATCH, side), ys = randoms(random, BATCH, side);
+		measure("Sketch.moveShapeTo", param, null, ops -> {
+			long version = 0;
+			for (int i = 0; i < ops; i++) {
+				version += sketch.moveShapeTo(IDs[i % IDs.length], xs[i], ys[i]);
+			}
+			return version;
+		}, BATCH);
+
+		Point[] points = new Point[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			points[i] = new Point(random.nextInt(side), random.nextInt(side));
+		}
+		sketch.load(base);
+		sketch.mouseInShape(points[0]);		// builds the index, as an editor's first click would
+		measure("Sketch.mouseInShape", param, null, ops -> {
+			long found = 0;
+			for (int i = 0; i < ops; i++) {
+				found += sketch.mouseInShape(points[i]);
+			}
+			return found;
+		}, BATCH);
+
+		BufferedImage image = new BufferedImage(VIEW_WIDTH, VIEW_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		int viewX = (side - VIEW_WIDTH) / 2, viewY = (side - VIEW_HEIGHT) / 2;
+		g.translate(-viewX, -viewY);
+		measure("Sketch.drawAllShapes (window)", param, () -> g.setClip(viewX, viewY, VIEW_WIDTH, VIEW_HEIGHT), ops -> {
+			for (int i = 0; i < ops; i++) {
+				sketch.drawAllShapes(g);
+			}
+			return image.getRGB(0, 0);
+		}, 1);
+		measure("Sketch.drawAllShapes (tile)", param, () -> g.setClip(viewX, viewY, TILE, TILE), ops -> {
+			for (int i = 0; i < ops; i++) {
+				sketch.drawAllShapes(g);
+			}
+			return image.getRGB(0, 0);
+		}, 1);
+		g.dispose();
+	}
+
+	/**
+	 * The simple shapes' hit tests, at points in and around them
+	 */
+	private static void geometryBenchmarks() throws Exception {
+		Random random = new Random(42);
+		Ellipse ellipse = new Ellipse(100, 100, 300, 220, Color.black);
+		int[] xs = randoms(random, BATCH, 400), ys = randoms(random, BATCH, 320);
+		measure("Ellipse.contains", "", null, ops -> {
+			long hits = 0;
+			for (int i = 0; i < ops; i++) {
+				if (ellipse.contains(xs[i], ys[i])) hits++;
+			}
+			return hits;
+		}, BATCH);
+
+		int[] x1s = randoms(random, BATCH, 400), y1s = randoms(random, BATCH, 400);
+		int[] x2s = randoms(random, BATCH, 400), y2s = randoms(random, BATCH, 400);
+		measure("Segment.pointToSegmentDistance", "", null, ops -> {
+			double total = 0;
+			for (int i = 0; i < ops; i++) {
+				total += Segment.pointToSegmentDistance(xs[i], ys[i], x1s[i], y1s[i], x2s[i], y2s[i]);
+			}
+			return (long) total;
+		}, BATCH);
+	}
+
+	/**
+	 * Polyline's hit test on a stroke of the given length, at points on it and around it
+	 */
+	private static void strokeBenchmarks(int length) throws Exception {
+		if (!wanted(STROKE)) return;
+		Random random = new Random(42);
+		Polyline stroke = randomStroke(random, length);
+		BoundingBox bounds = stroke.getBounds();
+		int[] xs = new int[BATCH], ys = new int[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			if (i % 2 == 0) {		// near a point of the stroke, so about half hit
+				int p = random.nextInt(length);
+				xs[i] = stroke.getX(p) + random.nextInt(-15, 16);
+				ys[i] = stroke.getY(p) + random.nextInt(-15, 16);
+			}
+			else {					// anywhere around it, so mostly miss
+				xs[i] = random.nextInt(bounds.x1, bounds.x2 + 1);
+				ys[i] = random.nextInt(bounds.y1, bounds.y2 + 1);
+			}
+		}
+		stroke.contains(xs[0], ys[0]);		// builds the segment tree, as the first click on it would
+		measure("Polyline.contains", "points=" + length, null, ops -> {
+			long hits = 0;
+			for (int i = 0; i < ops; i++) {
+				if (stroke.contains(xs[i], ys[i])) hits++;
+			}
+			return hits;
+		}, BATCH);
+	}
+
+	/**
+	 * What the server does with what a client sends: parse it (text or binary) and apply it to a room's sketch
+	 * (with nobody in the room to send it on to)
+	 */
+	private static void parsingBenchmarks() throws Exception {
+		if (!wanted(PARSING)) return;
+		Random random = new Random(42);
+		SketchRoom room = new SketchRoom("bench", new Sequencer("bench"));
+		Sketch sketch = room.getSketch();
+		for (int i = 0; i < 1000; i++) {
+			sketch.addShape(sketch.getAvailID(), randomShape(random, 800));
+		}
+		SketchSnapshot base = sketch.snapshot();
+
+		String[] adds = new String[BATCH], moves = new String[BATCH];
+		byte[][] addFrames = new byte[BATCH][], moveFrames = new byte[BATCH][];
+		for (int i = 0; i < BATCH; i++) {
+			Command add = Command.add(randomShape(random, 800));
+			Command move = Command.move(random.nextInt(1000), random.nextInt(800), random.nextInt(800));
+			adds[i] = add.toString();
+			moves[i] = move.toString();
+			addFrames[i] = BinaryProtocol.encode(add);
+			moveFrames[i] = BinaryProtocol.encode(move);
+		}
+		measure("Command.parse + processCommand (add)", "", () -> sketch.load(base), ops -> {
+			for (int i = 0; i < ops; i++) {
+				SketchServerCommunicator.processCommand(Command.parse(adds[i]), null, room);
+			}
+			return sketch.snapshot().getVersion();
+		}, BATCH);
+		measure("Command.parse + processCommand (move)", "", () -> sketch.load(base), ops -> {
+			for (int i = 0; i < ops; i++) {
+				SketchServerCommunicator.processCommand(Command.parse(moves[i]), null, room);
+			}
+			return sketch.snapshot().getVersion();
+		}, BATCH);
+		measure("BinaryProtocol.decode + processCommand (add)", "", () -> sketch.load(base), ops -> {
+			for (int i = 0; i < ops; i++) {
+				SketchServerCommunicator.processCommand(decode(addFrames[i]), null, room);
+			}
+			return sketch.snapshot().getVersion();
+		}, BATCH);
+		measure("BinaryProtocol.decode + processCommand (move)", "", () -> sketch.load(base), ops -> {
+			for (int i = 0; i < ops; i++) {
+				SketchServerCommunicator.processCommand(decode(moveFrames[i]), null, room);
+			}
+			return sketch.snapshot().getVersion();
+		}, BATCH);
+	}
+
+	/**
+	 * Parsing a whole freehand stroke of the given length added at once, and the server simplifying and adding it
+	 */
+	private static void strokeParsingBenchmarks(int length) throws Exception {
+		if (!wanted(STROKE_PARSING)) return;
+		Random random = new Random(42);
+		SketchRoom room = new SketchRoom("bench", new Sequencer("bench"));
+		Command add = Command.add(randomStroke(random, length));
+		String line = add.toString();
+		byte[] frame = BinaryProtocol.encode(add);
+		String param = "points=" + length;
+		measure("Command.parse (freehand)", param, null, ops -> {
+			long points = 0;
+			for (int i = 0; i < ops; i++) {
+				points += ((Polyline) Command.parse(line).getShape()).size();
+			}
+			return points;
+		}, 1);
+		measure("BinaryProtocol.decode (freehand)", param, null, ops -> {
+			long points = 0;
+			for (int i = 0; i < ops; i++) {
+				points += ((Polyline) decode(frame).getShape()).size();
+			}
+			return points;
+		}, 1);
+		measure("BinaryProtocol.decode + processCommand (freehand)", param, () -> room.getSketch().clear(), ops -> {
+			for (int i = 0; i < ops; i++) {
+				SketchServerCommunicator.processCommand(decode(frame), null, room);
+			}
+			return room.getSketch().snapshot().getVersion();
+		}, 1);
+	}
+
+	/**
+	 * Runs the warmup and measured iterations of a benchmark and prints what it measured
+	 * @param setup run before each batch, untimed, or null
+	 * @param ops how many operations in each batch
+	 */
+	private static void measure(String name, String param, Runnable setup, Batch batch, int ops) throws Exception {
+		if (!wanted(name)) return;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		double[] nanosPerOp = new double[ITERATIONS];
+		long totalOps = 0, totalNanos = 0, totalBytes = 0, gcsBefore = 0, kept = 0;
+		for (int iteration = -WARMUP; iteration < ITERATIONS; iteration++) {
+			if (iteration == 0) gcsBefore = collections();
+			long iterationOps = 0, iterationNanos = 0, iterationBytes = 0;
+			long end = System.nanoTime() + MILLIS * 1_000_000;
+			do {
+				if (setup != null) setup.run();
+				long bytes = threads.getCurrentThreadAllocatedBytes();
+				long start = System.nanoTime();
+				kept += batch.run(ops);
+				iterationNanos += System.nanoTime() - start;
+				iterationBytes += threads.getCurrentThreadAllocatedBytes() - bytes;
+				iterationOps += ops;
+			} while (System.nanoTime() < end);
+			if (iteration >= 0) {
+				nanosPerOp[iteration] = (double) iterationNanos / iterationOps;
+				totalOps += iterationOps;
+				totalNanos += iterationNanos;
+				totalBytes += iterationBytes;
+			}
+		}
+		long gcs = collections() - gcsBefore;
+		sink = kept;
+
+		double mean = (double) totalNanos / totalOps, spread = 0;
+		for (double nanos : nanosPerOp) {
+			spread += (nanos - mean) * (nanos - mean);
+		}
+		spread = Math.sqrt(spread / Math.max(1, ITERATIONS - 1));
+		System.out.println(String.format("%-50s %-14s %14.1f %10.1f %12.1f %10.1f %6d", name, param, mean, spread,
+				(double) totalBytes / totalOps, totalBytes * 1e3 / totalNanos, gcs));
+	}
+
+	/**
+	 * @return how many garbage collections have run so far, by every collector
+	 */
+	private static long collections() {
+		long count = 0;
+		List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+		for (GarbageCollectorMXBean collector : collectors) {
+			count += Math.max(0, collector.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * @return whether any of the benchmarks named is to be run
+	 */
+	private static boolean wanted(String... names) {
+		for (String name : names) {
+			if (only != null ? name.equals(only) : name.contains(filter)) return true;
+		}
+		return false;
+	}
+
+	private static Command decode(byte[] frame) throws Exception {
+		ByteBuffer buf = ByteBuffer.wrap(frame);
+		int length = BinaryProtocol.completeFrame(buf);
+		return BinaryProtocol.decode(ByteBuffer.wrap(frame, frame.length - length, length));
+	}
+
+	/**
+	 * @return how wide (and tall) a canvas holding this many shapes is
+	 */
+	private static int canvas(int size) {
+		return (int) Math.max(VIEW_WIDTH, VIEW_WIDTH * Math.sqrt(size / 1000.0));
+	}
+
+	private static Shape randomShape(Random random, int side) {
+		int x1 = random.nextInt(side), y1 = random.nextInt(side);
+		int x2 = x1 + 5 + random.nextInt(100), y2 = y1 + 5 + random.nextInt(100);
+		Color color = new Color(random.nextInt(0x1000000));
+		return switch (random.nextInt(3)) {
+			case 0 -> new Ellipse(x1, y1, x2, y2, color);
+			case 1 -> new Rectangle(x1, y1, x2, y2, color);
+			default -> new Segment(x1, y1, x2, y2, color);
+		};
+	}
+
+	/**
+	 * @return a stroke wandering about as a hand-drawn one does, a few pixels between points
+	 */
+	private static Polyline randomStroke(Random random, int length) {
+		int[] xy = new int[2 * length];
+		int x = 0, y = 0;
+		double heading = 0;
+		for (int i = 0; i < length; i++) {
+			heading += random.nextGaussian() * 0.3;
+			x += (int) Math.round(4 * Math.cos(heading));
+			y += (int) Math.round(4 * Math.sin(heading));
+			xy[2*i] = x;
+			xy[2*i+1] = y;
+		}
+		return new Polyline(xy, length, Color.black);
+	}
+
+	private static int[] randoms(Random random, int count, int bound) {
+		int[] values = new int[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = random.nextInt(bound);
+		}
+		return values;
+	}
+
+	/**
+	 * @return count different IDs below size, in random order
+	 */
+	private static int[] distinctIDs(Random random, int size, int count) {
+		int[] IDs = new int[size];
+		for (int i = 0; i < size; i++) {
+			IDs[i] = i;
+		}
+		for (int i = 0; i < count; i++) {
+			int j = i + random.nextInt(size - i);
+			int swap = IDs[i]; IDs[i] = IDs[j]; IDs[j] = swap;
+		}
+		return Arrays.copyOf(IDs, count);
+	}
+
+	private static int[] ints(String list) {
+		return Arrays.stream(list.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+	}
+}
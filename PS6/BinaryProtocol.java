@@ -0,0 +1,497 @@
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of the messages in command_message_key.txt, picked during the handshake.
+ *
+ * Each frame is a varint length, then that many bytes: a one-byte opcode (the same letter as the text message)
+ * and its payload. A change the server has put in order has the opcode's high bit set and its sequence number
+ * (a varint) right after the opcode. Shape IDs are varints, coordinates are zig-zag varints, colors are 4-byte ints, and a shape
+ * is a one-byte type ('e'llipse, 'r'ectangle, 's'egment, 'f'reehand) followed by its corners as a start and a
+ * zig-zag delta, or for freehand a point count, the first point, and each later point as a delta from the last.
+ * A snapshot of the whole sketch is its uncompressed length, then deflate-compressed a shape count and each shape's
+ * ID and shape, oldest to newest; the compressed bytes are split across the snapshot's frame and as many continuation
+ * frames ('c' and more of them) as it takes, so no frame is bigger than SNAPSHOT_CHUNK however big the sketch.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class BinaryProtocol {
+	public static final String HELLO_BINARY = "h binary";	// first line from an editor that wants binary (and the server's reply)
+	public static final String RESUME = "resume";			// after HELLO_BINARY, with the server's epoch and the last sequence number seen
+	public static final String HELLO_TEXT = "h text";		// first line from an editor that wants text (and the server's reply)
+	public static final String ROOM = "room";				// at the end of a hello, followed by the name of the room to join
+	public static final String DEFAULT_ROOM = "default";	// room for editors that don't name one
+	private static final int MAX_FRAME = 64 << 20;			// refuse anything bigger than this, rather than run out of memory
+	private static final int MAX_SNAPSHOT = 1 << 30;		// likewise for a snapshot, once inflated
+	private static final int SNAPSHOT_CHUNK = 1 << 20;		// most compressed bytes of a snapshot per frame
+	private static final int SNAPSHOT_MORE = 'c';			// opcode of a frame continuing a snapshot
+	private static final int SEQUENCED = 0x80;				// opcode bit for a frame with a sequence number
+	public static final boolean DEBUG = Boolean.getBoolean("sketch.debug");	// log every binary message received, not just connections and errors
+
+	/**
+	 * @return the command as one complete frame, length prefix included
+	 */
+	public static byte[] encode(Command cmd) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if (cmd.getSeq() > 0) {
+			body.write(cmd.getType() | SEQUENCED);
+			writeVarlong(body, cmd.getSeq());
+		}
+		else {
+			body.write(cmd.getType());
+		}
+		switch (cmd.getType()) {
+			case Command.ADD -> writeShape(body, cmd.getShape());
+			case Command.SHAPE -> {
+				writeVarint(body, cmd.getShapeID());
+				writeShape(body, cmd.getShape());
+			}
+			case Command.MOVE -> {
+				writeVarint(body, cmd.getShapeID());
+				writeZigzag(body, cmd.getX());
+				writeZigzag(body, cmd.getY());
+			}
+			case Command.RECOLOR -> {
+				writeVarint(body, cmd.getShapeID());
+				writeInt(body, cmd.getRGB());
+			}
+			case Command.STROKE_BEGIN -> {
+				writeVarint(body, cmd.getShapeID());
+				writeZigzag(body, cmd.getX());
+				writeZigzag(body, cmd.getY());
+				writeInt(body, cmd.getRGB());
+			}
+			case Command.POINTS -> {
+				writeVarint(body, cmd.getShapeID());
+				writePoints(body, cmd.getPoints());
+			}
+			case Command.SNAPSHOT -> {
+				return encodeSnapshot(body, cmd.getShapes());
+			}
+			case Command.RESYNC -> {}
+			default -> writeVarint(body, cmd.getShapeID());
+		}
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 5);
+		writeVarint(frame, body.size());
+		frame.write(body.toByteArray(), 0, body.size());
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Writes the shape's type, corners or points, and color, all read straight from the shape
+	 */
+	public static void writeShape(ByteArrayOutputStream out, Shape shape) {
+		if (shape instanceof Polyline) {
+			out.write('f');
+			((Polyline) shape).writePoints(out);
+		}
+		else if (shape instanceof Ellipse) {
+			Ellipse e = (Ellipse) shape;
+			out.write('e');
+			writeCorners(out, e.getX1(), e.getY1(), e.getX2(), e.getY2());
+		}
+		else if (shape instanceof Rectangle) {
+			Rectangle r = (Rectangle) shape;
+			out.write('r');
+			writeCorners(out, r.getX1(), r.getY1(), r.getX2(), r.getY2());
+		}
+		else {
+			Segment s = (Segment) shape;
+			out.write('s');
+			writeCorners(out, s.getX1(), s.getY1(), s.getX2(), s.getY2());
+		}
+		writeInt(out, shape.getColor().getRGB());
+	}
+
+	/**
+	 * Writes two corners as the first and a zig-zag delta to the second
+	 */
+	private static void writeCorners(ByteArrayOutputStream out, int x1, int y1, int x2, int y2) {
+		writeZigzag(out, x1);
+		writeZigzag(out, y1);
+		writeZigzag(out, x2 - x1);
+		writeZigzag(out, y2 - y1);
+	}
+
+	/**
+	 * Encodes a snapshot: after its header (opcode and sequence number), its uncompressed length, then the shapes
+	 * deflated in one go, cut into frames of at most SNAPSHOT_CHUNK compressed bytes
+	 * @return every frame of the snapshot, one after another
+	 */
+	private static byte[] encodeSnapshot(ByteArrayOutputStream header, SketchSnapshot shapes) {
+		ByteArrayOutputStream records = new ByteArrayOutputStream(32 * shapes.size() + 5);
+		writeVarint(records, shapes.size());
+		shapes.forEach((ID, shape) -> {
+			writeVarint(records, ID);
+			writeShape(records, shape);
+		});
+		byte[] raw = records.toByteArray();
+		writeVarint(header, raw.length);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);		// a LAN is fast; don't keep the joiner waiting on us
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream frames = new ByteArrayOutputStream(raw.length / 4 + 64);
+		byte[] chunk = new byte[Math.min(SNAPSHOT_CHUNK, raw.length + 64)];
+		ByteArrayOutputStream start = header;		// what goes before the chunk in its frame
+		do {
+			int n = 0;
+			while (n < chunk.length && !deflater.finished()) {
+				n += deflater.deflate(chunk, n, chunk.length - n);
+			}
+			writeVarint(frames, start.size() + n);
+			frames.write(start.toByteArray(), 0, start.size());
+			frames.write(chunk, 0, n);
+			start = new ByteArrayOutputStream(1);
+			start.write(SNAPSHOT_MORE);
+		} while (!deflater.finished());
+		deflater.end();
+		return frames.toByteArray();
+	}
+
+	/**
+	 * @return the snapshot encoded by encodeSnapshot, starting in the given frame
+	 * @param more where the rest of its frames come from, or null if there's nothing but this one
+	 */
+	private static SketchSnapshot readSnapshot(ByteBuffer in, DataInputStream more) throws IOException {
+		int length = readVarint(in);
+		if (length < 0 || length > MAX_SNAPSHOT) throw new IOException("bad snapshot length " + length);
+		// grown as it actually inflates, rather than sized from the length we were told
+		byte[] raw = new byte[Math.min(length, 64 << 10)];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(in);
+			int n = 0;
+			while (n < length && !inflater.finished()) {
+				if (n == raw.length) raw = Arrays.copyOf(raw, (int) Math.min(length, 2L * raw.length));
+				int inflated = inflater.inflate(raw, n, raw.length - n);
+				if (inflated == 0 && inflater.needsInput()) {
+					ByteBuffer next = more != null ? readFrame(more) : null;
+					if (next == null) throw new EOFException("snapshot ended early");
+					if ((next.get() & 0xff) != SNAPSHOT_MORE) throw new IOException("snapshot cut off by another frame");
+					inflater.setInput(next);
+				}
+				n += inflated;
+			}
+			if (n < length) throw new EOFException("snapshot ended early");
+		}
+		catch (DataFormatException e) {
+			throw new IOException("bad snapshot", e);
+		}
+		finally {
+			inflater.end();
+		}
+		ByteBuffer records = ByteBuffer.wrap(raw);
+		SketchSnapshot shapes = SketchSnapshot.EMPTY;
+		for (int count = readVarint(records); count > 0; count--) {
+			int shapeID = readVarint(records);
+			shapes = shapes.with(shapeID, readShape(records));
+		}
+		return shapes;
+	}
+
+	/**
+	 * Writes a point count, the first point, and each later point as a delta from the one before
+	 * @param xy x1, y1, x2, y2 ...
+	 */
+	private static void writePoints(ByteArrayOutputStream out, int[] xy) {
+		writePoints(out, xy, xy.length);
+	}
+
+	/**
+	 * Writes the points in the first length entries of xy, as writePoints above
+	 */
+	static void writePoints(ByteArrayOutputStream out, int[] xy, int length) {
+		writeVarint(out, length / 2);
+		int px = 0, py = 0;		// previous point, so each one is just a small delta
+		for (int i = 0; i < length; i += 2) {
+			writeZigzag(out, xy[i] - px);
+			writeZigzag(out, xy[i+1] - py);
+			px = xy[i]; py = xy[i+1];
+		}
+	}
+
+	/**
+	 * @return the points written by writePoints, x1, y1, x2, y2 ...
+	 */
+	private static int[] readPoints(ByteBuffer in) throws IOException {
+		int n = readVarint(in);
+		// each point takes at least two bytes, so a count bigger than that is a lie, not a reason to allocate
+		if (n < 0 || n > in.remaining() / 2) throw new IOException("bad point count " + n);
+		int[] xy = new int[2*n];
+		int x = 0, y = 0;
+		for (int i = 0; i < n; i++) {
+			x += readZigzag(in);
+			y += readZigzag(in);
+			xy[2*i] = x; xy[2*i+1] = y;
+		}
+		return xy;
+	}
+
+	/**
+	 * Decodes one frame's body from a client, refusing anything only the server sends (e.g. a snapshot)
+	 * before reading any more of it
+	 */
+	public static Command decodeRequest(ByteBuffer body) throws IOException {
+		char type = (char) (body.get(body.position()) & 0xff & ~SEQUENCED);
+		switch (type) {
+			case Command.ADD: case Command.MOVE: case Command.DELETE: case Command.RECOLOR: case Command.FRONT:
+			case Command.BACK: case Command.STROKE_BEGIN: case Command.POINTS: case Command.STROKE_END:
+				return decode(body);
+			default:
+				throw new IOException("clients don't send opcode " + (int) type);
+		}
+	}
+
+	/**
+	 * Decodes one frame's body (opcode and payload, without the length)
+	 */
+	public static Command decode(ByteBuffer body) throws IOException {
+		return decode(body, null);
+	}
+
+	/**
+	 * Decodes one frame's body, as above
+	 * @param more where the frames continuing it (if it's a snapshot) come from, or null if there's nothing but this one
+	 */
+	private static Command decode(ByteBuffer body, DataInputStream more) throws IOException {
+		int opcode = body.get() & 0xff;
+		long seq = (opcode & SEQUENCED) != 0 ? readVarlong(body) : 0;
+		Command cmd = decode((char) (opcode & ~SEQUENCED), body, more);
+		cmd.setSeq(seq);
+		return cmd;
+	}
+
+	private static Command decode(char type, ByteBuffer body, DataInputStream more) throws IOException {
+		switch (type) {
+			case Command.ADD:
+				return Command.add(readShape(body));
+			case Command.SHAPE:
+				return Command.shape(readVarint(body), readShape(body));
+			case Command.MOVE:
+				return Command.move(readVarint(body), readZigzag(body), readZigzag(body));
+			case Command.RECOLOR:
+				return Command.recolor(readVarint(body), body.getInt());
+			case Command.STROKE_BEGIN:
+				return Command.strokeBegin(readVarint(body), readZigzag(body), readZigzag(body), body.getInt());
+			case Command.POINTS:
+				return Command.points(readVarint(body), readPoints(body));
+			case Command.STROKE_END:
+				return Command.strokeEnd(readVarint(body), null);
+			case Command.SNAPSHOT:
+				return Command.snapshot(readSnapshot(body, more));
+			case Command.RESYNC:
+				return Command.of(type, -1);
+			case Command.DELETE: case Command.FRONT: case Command.BACK:
+				return Command.of(type, readVarint(body));
+			default:
+				throw new IOException("unknown binary opcode " + (int) type);
+		}
+	}
+
+	/**
+	 * @return the shape written by writeShape
+	 */
+	public static Shape readShape(ByteBuffer in) throws IOException {
+		char shapeType = (char) in.get();
+		if (shapeType == 'f') {
+			int[] xy = readPoints(in);
+			return new Polyline(xy, xy.length / 2, new Color(in.getInt()));
+		}
+		int x1 = readZigzag(in), y1 = readZigzag(in);
+		int x2 = x1 + readZigzag(in), y2 = y1 + readZigzag(in);
+		Color color = new Color(in.getInt());
+		switch (shapeType) {
+			case 'e': return new Ellipse(x1, y1, x2, y2, color);
+			case 'r': return new Rectangle(x1, y1, x2, y2, color);
+			case 's': return new Segment(x1, y1, x2, y2, color);
+			default: throw new IOException("unknown binary shape type " + (int) shapeType);
+		}
+	}
+
+	/**
+	 * Reads one whole frame from a blocking stream (for a snapshot, all of its frames)
+	 * @return the command, or null at end of stream
+	 */
+	public static Command read(DataInputStream in) throws IOException {
+		ByteBuffer body = readFrame(in);
+		return body != null ? decode(body, in) : null;
+	}
+
+	/**
+	 * Reads one whole frame from a client's blocking stream, as decodeRequest
+	 * @return the command, or null at end of stream
+	 */
+	public static Command readRequest(DataInputStream in) throws IOException {
+		ByteBuffer body = readFrame(in);
+		return body != null ? decodeRequest(body) : null;
+	}
+
+	/**
+	 * @return the body of the next frame from a blocking stream, or null at end of stream
+	 */
+	private static ByteBuffer readFrame(DataInputStream in) throws IOException {
+		int length = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				if (shift == 0) return null;
+				throw new EOFException("stream ended inside a frame length");
+			}
+			length |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) break;
+			if (shift > 28) throw new IOException("bad frame length");
+		}
+		if (length <= 0 || length > MAX_FRAME) throw new IOException("bad frame length " + length);
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return ByteBuffer.wrap(body);
+	}
+
+	/**
+	 * Checks whether a whole frame has arrived, without consuming anything
+	 * @return the frame's body length if it's all in buf (from its position), else -1
+	 */
+	public static int completeFrame(ByteBuffer buf) throws IOException {
+		int length = 0;
+		int pos = buf.position();
+		for (int shift = 0; ; shift += 7) {
+			if (pos >= buf.limit()) return -1;
+			int b = buf.get(pos++);
+			length |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) break;
+			if (shift > 28) throw new IOException("bad frame length");
+		}
+		if (length <= 0 || length > MAX_FRAME) throw new IOException("bad frame length " + length);
+		return buf.limit() - pos >= length ? length : -1;
+	}
+
+	/**
+	 * @return the hello line for an editor that wants binary, picking up where it left off if it has been connected before
+	 * @param epoch the server's epoch from its handshake reply, or 0 if we haven't had one
+	 * @param lastSeq sequence number of the last change we got
+	 */
+	public static String helloBinary(long epoch, long lastSeq, String room) {
+		if (epoch == 0) return HELLO_BINARY + roomSuffix(room);
+		return HELLO_BINARY + " " + RESUME + " " + epoch + " " + lastSeq + roomSuffix(room);
+	}
+
+	/**
+	 * @return the hello line for an editor that wants text
+	 */
+	public static String helloText(String room) {
+		return HELLO_TEXT + roomSuffix(room);
+	}
+
+	private static String roomSuffix(String room) {
+		return room.equals(DEFAULT_ROOM) ? "" : " " + ROOM + " " + room;
+	}
+
+	/**
+	 * @return the last sequence number an editor's hello says it has, if it's resuming a session with this room, else -1
+	 */
+	public static long resumeFrom(String hello, long epoch) {
+		String[] tokens = hello.split(" ");
+		if (tokens.length >= 5 && tokens[2].equals(RESUME) && tokens[3].equals(Long.toString(epoch))) {
+			return Long.parseLong(tokens[4]);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the room an editor's hello asks for (the default room if it doesn't say), or null if the name isn't
+	 * allowed: up to 64 letters, digits, '-' and '_', since it also names the room's directory on disk
+	 */
+	public static String roomOf(String hello) {
+		String[] tokens = hello.split(" ");
+		for (int i = 2; i < tokens.length; i++) {
+			if (tokens[i].equals(ROOM)) {
+				if (i + 1 >= tokens.length || !tokens[i + 1].matches("[A-Za-z0-9_-]{1,64}")) return null;
+				return tokens[i + 1];
+			}
+		}
+		return DEFAULT_ROOM;
+	}
+
+	/**
+	 * Reads a line of text from a byte stream, for the text protocol and the handshake before binary begins
+	 * @return the line without its line ending, or null at end of stream
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				if (line.size() == 0) return null;
+				break;
+			}
+			line.write(b);
+		}
+		String text = line.toString();
+		return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+	}
+
+	// Varints: 7 bits per byte, low bits first, high bit set on every byte but the last
+
+	public static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	public static int readVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.get();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) break;
+		}
+		return value;
+	}
+
+	public static void writeVarlong(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	public static long readVarlong(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) break;
+		}
+		return value;
+	}
+
+	// Zig-zag maps small negative numbers to small positive ones (0, -1, 1, -2 ... to 0, 1, 2, 3 ...) so they stay short
+
+	public static void writeZigzag(ByteArrayOutputStream out, int value) {
+		writeVarint(out, (value << 1) ^ (value >> 31));
+	}
+
+	public static int readZigzag(ByteBuffer in) {
+		int value = readVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * An axis-aligned box around a shape, from upper-left corner (x1,y1) to lower-right corner (x2,y2) inclusive,
+ * with x1<=x2 and y1<=y2
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class BoundingBox {
+	public final int x1, y1, x2, y2;		// upper left and lower right
+
+	/**
+	 * A box with the given corners, in either order
+	 */
+	public BoundingBox(int x1, int y1, int x2, int y2) {
+		this.x1 = Math.min(x1, x2);
+		this.y1 = Math.min(y1, y2);
+		this.x2 = Math.max(x1, x2);
+		this.y2 = Math.max(y1, y2);
+	}
+
+	/**
+	 * Whether or not the point is inside the box
+	 */
+	public boolean contains(int x, int y) {
+		return x1 <= x && x <= x2 && y1 <= y && y <= y2;
+	}
+
+	/**
+	 * Whether or not the two boxes overlap at all
+	 */
+	public boolean intersects(BoundingBox other) {
+		return x1 <= other.x2 && other.x1 <= x2 && y1 <= other.y2 && other.y1 <= y2;
+	}
+
+	/**
+	 * @return a box bigger by pad on every side
+	 */
+	public BoundingBox padded(int pad) {
+		return new BoundingBox(x1 - pad, y1 - pad, x2 + pad, y2 + pad);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof BoundingBox)) return false;
+		BoundingBox box = (BoundingBox) other;
+		return x1 == box.x1 && y1 == box.y1 && x2 == box.x2 && y2 == box.y2;
+	}
+
+	@Override
+	public int hashCode() {
+		return ((x1 * 31 + y1) * 31 + x2) * 31 + y2;
+	}
+
+		@Override
+	public String toString() {
+		return "box " + x1 + " " + y1 + " " + x2 + " " + y2;
+	}
+}
@@ -0,0 +1,58 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces move storms before they're broadcast: while a shape is being dragged, only its latest position
+ * each tick goes out. Every other command goes out right away, after any moves still pending, so nothing is
+ * ever reordered relative to an add, delete or recolor.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class BroadcastScheduler {
+	private Consumer<Command> fanOut;										// actually sends a command to every client
+	private int tickMillis;													// how long moves wait to be coalesced; 0 sends right away
+	private LinkedHashMap<Integer, Command> pendingMoves = new LinkedHashMap<>();	// latest move per shape ID, oldest first
+	private long movesIn = 0, movesOut = 0;									// to see how much coalescing saves
+
+	public BroadcastScheduler(int tickMillis, Consumer<Command> fanOut) {
+		this.tickMillis = tickMillis;
+		this.fanOut = fanOut;
+	}
+
+	/**
+	 * Broadcasts the command, holding back moves until the end of the tick
+	 * @return whether it was held back, so flushMoves() needs calling at the end of the tick
+	 */
+	public synchronized boolean submit(Command cmd) {
+		if (cmd.getType() == Command.MOVE && tickMillis > 0) {
+			movesIn++;
+			// moved to the back, so moves still go out in order of sequence number
+			pendingMoves.remove(cmd.getShapeID());
+			pendingMoves.put(cmd.getShapeID(), cmd);
+			return true;
+		}
+		flushMoves();
+		fanOut.accept(cmd);
+		return false;
+	}
+
+	/**
+	 * Sends the latest position of every shape moved since the last flush; called once a tick by whoever owns this
+	 */
+	public synchronized void flushMoves() {
+		if (pendingMoves.isEmpty()) return;
+		List<Command> moves = new ArrayList<>(pendingMoves.values());
+		pendingMoves.clear();
+		movesOut += moves.size();
+		for (Command move : moves) {
+			fanOut.accept(move);
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "moves received " + movesIn + ", broadcast " + movesOut + ", pending " + pendingMoves.size();
+	}
+}
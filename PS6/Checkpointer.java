@@ -0,0 +1,273 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Every so often writes the whole sketch to a checkpoint file, so a restart only has to load that and replay the
+ * changes logged after it, and the log segments before it can be deleted.
+ *
+ * A checkpoint is captured on the sequencer (just a reference to the current SketchSnapshot, so it costs nothing there)
+ * and written by one of a few worker threads the whole server shares, one checkpoint of a room at a time. The file is
+ * written under a temporary name, forced, and then renamed, so a checkpoint is either all there or not there at all.
+ *
+ * Format: magic, sequence number (varlong), next available ID (varint), shape count (varint), then each shape's ID
+ * (varint) and shape (as in BinaryProtocol) oldest first, and a CRC32 of everything before it.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class Checkpointer {
+	private static final int MAGIC = 0x534b4350;		// "SKCP"
+	private static final int CHUNK = 1 << 20;			// write in chunks of about this many bytes
+
+	private Path dir;						// where the checkpoints (and the log) live
+	private OpLog log;						// its segments covered by a checkpoint get deleted
+	private int intervalMillis;				// how often to check for changes to checkpoint
+	private Runnable requestCapture;		// asks the sequencer to capture the sketch as of now
+	private ScheduledExecutorService workers;	// threads that write checkpoints, shared with other rooms
+	private ScheduledFuture<?> requests;		// asks for a capture every interval, once started
+	private SketchSnapshot captured;		// captured but not yet written, or null
+	private long capturedSeq;				// sequence number it's up to
+	private int capturedNextID;				// next ID the sketch would hand out
+	private long lastSeq;					// sequence number of the latest checkpoint written
+	private boolean writing = false;		// whether a worker is writing (or about to write) what's captured
+	private boolean closed = false;			// whether close() has been called
+	private CompletableFuture<Void> finished = new CompletableFuture<>();	// done once the last checkpoint is written after close()
+	private long written = 0, lastMillis = 0;	// for stats
+
+	/**
+	 * @param lastSeq sequence number of the checkpoint the server started from, if any
+	 * @param requestCapture gets capture() called on the sequencer, soon
+	 * @param workers threads to write on
+	 */
+	public Checkpointer(Path dir, OpLog log, int intervalMillis, long lastSeq, Runnable requestCapture,
+			ScheduledExecutorService workers) {
+		this.dir = dir;
+		this.log = log;
+		this.intervalMillis = intervalMillis;
+		this.lastSeq = lastSeq;
+		this.requestCapture = requestCapture;
+		this.workers = workers;
+	}
+
+	/**
+	 * Starts asking for a capture every interval
+	 */
+	public synchronized void start() {
+		requests = workers.scheduleWithFixedDelay(requestCapture, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Hands over the sketch as of a sequence number to be written; called on the sequencer.
+	 * If the last one hasn't been written yet, this one replaces it.
+	 */
+	public synchronized void capture(SketchSnapshot shapes, long seq, int nextID) {
+		if (seq <= lastSeq) return;			// nothing new
+		captured = shapes;
+		capturedSeq = seq;
+		capturedNextID = nextID;
+		log.rollAfter(seq);					// so the segments up to here can go as a whole once this is written
+		writeSoon();
+	}
+
+	/**
+	 * Stops asking for captures, and has whatever has been captured written; never waits for the disk
+	 * @return done once it's written
+	 */
+	public synchronized CompletableFuture<Void> close() {
+		closed = true;
+		if (requests != null) requests.cancel(false);
+		writeSoon();
+		return finished;
+	}
+
+	/**
+	 * Has a worker write what's captured, unless one's already on it
+	 */
+	private synchronized void writeSoon() {
+		if (writing) return;
+		writing = true;
+		workers.execute(this::write);
+	}
+
+	/**
+	 * Writes whatever gets captured, until there's nothing more; on a worker
+	 */
+	private void write() {
+		while (true) {
+			SketchSnapshot shapes;
+			long seq;
+			int nextID;
+			synchronized (this) {
+				if (captured == null) {
+					writing = false;
+					if (closed) finished.complete(null);
+					return;
+				}
+				shapes = captured;
+				seq = capturedSeq;
+				nextID = capturedNextID;
+				captured = null;
+			}
+			try {
+				long start = System.currentTimeMillis();
+				write(shapes, seq, nextID);
+				synchronized (this) {
+					lastSeq = seq;
+					written++;
+					lastMillis = System.currentTimeMillis() - start;
+				}
+				deleteOlder(seq);
+				log.compact(seq);
+			}
+			catch (IOException | RuntimeException e) {
+				System.err.println("checkpoint at " + seq + " failed");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Writes the checkpoint to a temporary file and renames it into place once it's safely on disk
+	 */
+	private void write(SketchSnapshot shapes, long seq, int nextID) throws IOException {
+		Path temp = dir.resolve("checkpoint-" + seq + ".tmp");
+		CRC32 crc = new CRC32();
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK + 4096);
+			chunk.write(MAGIC >>> 24);
+			chunk.write(MAGIC >>> 16);
+			chunk.write(MAGIC >>> 8);
+			chunk.write(MAGIC);
+			BinaryProtocol.writeVarlong(chunk, seq);
+			BinaryProtocol.writeVarint(chunk, nextID);
+			BinaryProtocol.writeVarint(chunk, shapes.size());
+			try {
+				// one walk over the shapes, rather than a list of every ID and a lookup for each
+				shapes.forEach((ID, shape) -> {
+					BinaryProtocol.writeVarint(chunk, ID);
+					BinaryProtocol.writeShape(chunk, shape);
+					if (chunk.size() >= CHUNK) {
+						try {
+							writeChunk(out, chunk, crc);
+						}
+						catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+				});
+			}
+			catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			writeChunk(out, chunk, crc);
+			ByteBuffer check = ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip();
+			while (check.hasRemaining()) {
+				out.write(check);
+			}
+			out.force(true);
+		}
+		Files.move(temp, dir.resolve("checkpoint-" + seq + ".bin"), StandardCopyOption.ATOMIC_MOVE);
+		try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+			directory.force(true);			// make the rename itself stick
+		}
+		catch (IOException e) {
+			// not every platform lets a directory be opened; the rename will still get there eventually
+		}
+	}
+
+	private static void writeChunk(FileChannel out, ByteArrayOutputStream chunk, CRC32 crc) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(chunk.toByteArray());
+		crc.update(buf.duplicate());
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+		chunk.reset();
+	}
+
+	/**
+	 * Deletes the checkpoints before this one, and any left half written
+	 */
+	private void deleteOlder(long seq) throws IOException {
+		List<Path> old;
+		try (var files = Files.list(dir)) {
+			old = files.filter(f -> f.getFileName().toString().matches("checkpoint-\\d+\\.(bin|tmp)") && seqOf(f) < seq).toList();
+		}
+		for (Path path : old) {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * @return the checkpoint files in dir, newest first
+	 */
+	private static List<Path> checkpoints(Path dir) throws IOException {
+		List<Path> checkpoints = new ArrayList<>();
+		try (var files = Files.list(dir)) {
+			files.filter(f -> f.getFileName().toString().matches("checkpoint-\\d+\\.bin")).forEach(checkpoints::add);
+		}
+		checkpoints.sort((a, b) -> Long.compare(seqOf(b), seqOf(a)));
+		return checkpoints;
+	}
+
+	private static long seqOf(Path checkpoint) {
+		String name = checkpoint.getFileName().toString();
+		return Long.parseLong(name.substring("checkpoint-".length(), name.lastIndexOf('.')));
+	}
+
+	/**
+	 * Loads the newest checkpoint in dir that's intact into the sketch
+	 * @return its sequence number, or 0 if there's none
+	 */
+	public static long restore(Path dir, Sketch sketch) throws IOException {
+		for (Path path : checkpoints(dir)) {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				int end = mapped.limit() - 4;
+				CRC32 crc = new CRC32();
+				if (end < 4 || mapped.getInt(0) != MAGIC) {
+					System.out.println("checkpoint: " + path.getFileName() + " isn't a checkpoint");
+					continue;
+				}
+				crc.update(mapped.slice(0, end));
+				if ((int) crc.getValue() != mapped.getInt(end)) {
+					System.out.println("checkpoint: " + path.getFileName() + " is damaged");
+					continue;
+				}
+				mapped.position(4);
+				long seq = BinaryProtocol.readVarlong(mapped);
+				int nextID = BinaryProtocol.readVarint(mapped);
+				int count = BinaryProtocol.readVarint(mapped);
+				int[] IDs = new int[count];
+				Shape[] shapes = new Shape[count];
+				for (int i = 0; i < count; i++) {
+					IDs[i] = BinaryProtocol.readVarint(mapped);
+					shapes[i] = BinaryProtocol.readShape(mapped);
+				}
+				sketch.load(SketchSnapshot.of(IDs, shapes, count, 0));
+				if (nextID > 0) sketch.reserveID(nextID - 1);
+				return seq;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "checkpoints " + written + " (last at " + lastSeq + ", " + lastMillis + " ms)";
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * The server's handle on one connected editor, whichever way it is connected
+ * (a thread per socket in SketchServerCommunicator, or a selector-driven channel in SketchChannelCommunicator)
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public interface ClientCommunicator {
+	/**
+	 * Sends an already-encoded message to the client; the same message may be going to every client
+	 */
+	public void send(ServerMessage msg);
+
+	/**
+	 * Sends a message to just this client
+	 */
+	public default void send(String msg) {
+		send(new ServerMessage(msg));
+	}
+
+	/**
+	 * @return whether the client negotiated the binary protocol
+	 */
+	public boolean isBinary();
+
+	/**
+	 * @return the queue of messages still waiting to go out to the client
+	 */
+	public OutboundQueue getOutbound();
+
+	/**
+	 * @return ID of the freehand stroke the client is streaming, or -1 if it isn't drawing one
+	 */
+	public int getStrokeID();
+
+	public void setStrokeID(int shapeID);
+}
@@ -0,0 +1,268 @@
+import java.awt.Color;
+import java.awt.Point;
+
+/**
+ * One message of the protocol in command_message_key.txt, parsed, whichever encoding it arrived in
+ * (a text line, or a BinaryProtocol frame)
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class Command {
+	// Message types, by their one-letter text (and binary) opcode
+	public static final char ADD = 'a';				// client asks to add a shape
+	public static final char SHAPE = 's';			// server tells clients about a shape with its ID
+	public static final char MOVE = 'm';
+	public static final char DELETE = 'd';
+	public static final char RECOLOR = 'r';
+	public static final char FRONT = 'f';
+	public static final char BACK = 'b';
+	public static final char RESYNC = 'x';			// server has given up on a client that fell behind
+	public static final char STROKE_BEGIN = 'n';	// a freehand stroke starts, to be streamed as it's drawn
+	public static final char POINTS = 'p';			// more points for a stroke being streamed
+	public static final char STROKE_END = 'e';		// the stroke is finished
+	public static final char SNAPSHOT = 'z';		// every shape at once, for an editor that just joined
+
+	private char type;				// one of the above
+	private int shapeID = -1;		// shape the command is about, if any
+	private int x, y;				// where to move to
+	private int rgb;				// color to recolor to
+	private Shape shape;			// shape to add (or the finished stroke, for the server's own use)
+	private int[] points;			// x1, y1, x2, y2 ... to append to a stroke
+	private SketchSnapshot shapes;	// the whole sketch
+	private long seq = 0;			// where the server put this in the order of all changes (for a snapshot, the latest in it)
+
+	private Command(char type, int shapeID) {
+		this.type = type;
+		this.shapeID = shapeID;
+	}
+
+	public static Command add(Shape shape) {
+		Command cmd = new Command(ADD, -1);
+		cmd.shape = shape;
+		return cmd;
+	}
+
+	public static Command shape(int shapeID, Shape shape) {
+		Command cmd = new Command(SHAPE, shapeID);
+		cmd.shape = shape;
+		return cmd;
+	}
+
+	public static Command move(int shapeID, int x, int y) {
+		Command cmd = new Command(MOVE, shapeID);
+		cmd.x = x;
+		cmd.y = y;
+		return cmd;
+	}
+
+	public static Command recolor(int shapeID, int rgb) {
+		Command cmd = new Command(RECOLOR, shapeID);
+		cmd.rgb = rgb;
+		return cmd;
+	}
+
+	/**
+	 * Starts a stroke at (x,y); clients send shapeID -1 and the server fills in the one it reserves
+	 */
+	public static Command strokeBegin(int shapeID, int x, int y, int rgb) {
+		Command cmd = new Command(STROKE_BEGIN, shapeID);
+		cmd.x = x;
+		cmd.y = y;
+		cmd.rgb = rgb;
+		return cmd;
+	}
+
+	/**
+	 * Appends points to a stroke; clients send shapeID -1, meaning the stroke they're drawing
+	 * @param points x1, y1, x2, y2 ...
+	 */
+	public static Command points(int shapeID, int[] points) {
+		Command cmd = new Command(POINTS, shapeID);
+		cmd.points = points;
+		return cmd;
+	}
+
+	/**
+	 * Finishes a stroke; clients send shapeID -1, meaning the stroke they're drawing
+	 * @param stroke the finished stroke, on the server (for editors that don't know about streaming), else null
+	 */
+	public static Command strokeEnd(int shapeID, Polyline stroke) {
+		Command cmd = new Command(STROKE_END, shapeID);
+		cmd.shape = stroke;
+		return cmd;
+	}
+
+	/**
+	 * The whole sketch; in text it's just an "s" line per shape
+	 */
+	public static Command snapshot(SketchSnapshot shapes) {
+		Command cmd = new Command(SNAPSHOT, -1);
+		cmd.shapes = shapes;
+		cmd.seq = shapes.getVersion();
+		return cmd;
+	}
+
+	/**
+	 * A command that's just a type and a shape ID (delete, front, back), or no shape at all (resync, with -1)
+	 */
+	public static Command of(char type, int shapeID) {
+		return new Command(type, shapeID);
+	}
+
+	public char getType() {
+		return type;
+	}
+
+	public int getShapeID() {
+		return shapeID;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getRGB() {
+		return rgb;
+	}
+
+	public Shape getShape() {
+		return shape;
+	}
+
+	/**
+	 * @return the points to append, x1, y1, x2, y2 ...
+	 */
+	public int[] getPoints() {
+		return points;
+	}
+
+	/**
+	 * @return the shapes of a snapshot
+	 */
+	public SketchSnapshot getShapes() {
+		return shapes;
+	}
+
+	/**
+	 * @return sequence number the server gave this, 0 if none
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	public void setSeq(long seq) {
+		this.seq = seq;
+	}
+
+	/**
+	 * Parses a text message
+	 * @param line String command, as outlined in command_message_key.txt
+	 */
+	public static Command parse(String line) {
+		String[] tokens = line.split(" ");
+		char type = tokens[0].charAt(0);
+		switch (type) {
+			case ADD:
+				return add(parseShape(tokens, 1));
+			case SHAPE:
+				return shape(Integer.parseInt(tokens[1]), parseShape(tokens, 2));
+			case MOVE:
+				return move(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
+			case RECOLOR:
+				return recolor(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]));
+			case STROKE_BEGIN:
+				return strokeBegin(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]),
+						Integer.parseInt(tokens[4]));
+			case POINTS:
+				int[] points = new int[tokens.length - 2];
+				for (int i = 0; i < points.length; i++) {
+					points[i] = Integer.parseInt(tokens[i+2]);
+				}
+				return points(Integer.parseInt(tokens[1]), points);
+			case STROKE_END:
+				return strokeEnd(Integer.parseInt(tokens[1]), null);
+			case RESYNC:
+				return of(type, -1);
+			default:
+				return of(type, Integer.parseInt(tokens[1]));
+		}
+	}
+
+	/**
+	 * Helper function to determine which shape to create from its text, "shapeType x1 y1 x2 y2 ... colorRGBvalue"
+	 * @param tokens the whole command split into tokens
+	 * @param from index of the shape type token
+	 * @return the shape, or null if the type isn't one we know
+	 */
+	public static Shape parseShape(String[] tokens, int from) {
+		switch (tokens[from]) {
+			case "ellipse":
+				return new Ellipse(Integer.parseInt(tokens[from+1]),
+						Integer.parseInt(tokens[from+2]),
+						Integer.parseInt(tokens[from+3]),
+						Integer.parseInt(tokens[from+4]),
+						new Color(Integer.parseInt(tokens[from+5])));
+			case "rectangle":
+				return new Rectangle(Integer.parseInt(tokens[from+1]),
+						Integer.parseInt(tokens[from+2]),
+						Integer.parseInt(tokens[from+3]),
+						Integer.parseInt(tokens[from+4]),
+						new Color(Integer.parseInt(tokens[from+5])));
+			case "freehand":
+				int size = tokens.length;
+				Polyline polyline = new Polyline(new Point(Integer.parseInt(tokens[from+1]), Integer.parseInt(tokens[from+2])),
+						new Color(Integer.parseInt(tokens[size-1])));
+				for (int i = from+3; i < size-1; i+=2) {
+					polyline.addPoint(new Point(Integer.parseInt(tokens[i]), Integer.parseInt(tokens[i+1])));
+				}
+				return polyline;
+			case "segment":
+				return new Segment(Integer.parseInt(tokens[from+1]),
+						Integer.parseInt(tokens[from+2]),
+						Integer.parseInt(tokens[from+3]),
+						Integer.parseInt(tokens[from+4]),
+						new Color(Integer.parseInt(tokens[from+5])));
+		}
+		return null;
+	}
+
+	/**
+	 * @return the command as a text message, as outlined in command_message_key.txt
+	 */
+	@Override
+	public String toString() {
+		switch (type) {
+			case ADD:
+				return "a " + shape.toString();
+			case SHAPE:
+				return "s " + shapeID + " " + shape.toString();
+			case MOVE:
+				return "m " + shapeID + " " + x + " " + y;
+			case RECOLOR:
+				return "r " + shapeID + " " + rgb;
+			case STROKE_BEGIN:
+				return "n " + shapeID + " " + x + " " + y + " " + rgb;
+			case POINTS:
+				StringBuilder str = new StringBuilder("p ").append(shapeID);
+				for (int coord : points) {
+					str.append(" ").append(coord);
+				}
+				return str.toString();
+			case SNAPSHOT:
+				StringBuilder lines = new StringBuilder();
+				shapes.forEach((ID, shape) -> {
+					if (lines.length() > 0) lines.append("\n");
+					lines.append("s ").append(ID).append(" ").append(shape);
+				});
+				return lines.toString();
+			case RESYNC:
+				return String.valueOf(type);
+			default:
+				return type + " " + shapeID;
+		}
+	}
+}
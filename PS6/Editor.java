@@ -13,6 +13,10 @@ public class Editor extends JFrame {
 	private static String serverIP = "localhost";			// IP address of sketch server
 	// "localhost" for your own machine;
 	// or ask a friend for their IP address
+	private static String room = BinaryProtocol.DEFAULT_ROOM;	// which sketch on the server to draw on; or give it as the first argument
+	private static boolean binaryProtocol = true;			// false to talk plain text, e.g. for testing with EchoServer
+	private static boolean streamStrokes = true;			// false to send freehand strokes only once they're finished
+	private static double simplify = 1;						// how far (in pixels) a finished freehand stroke may be straightened to drop points; 0 keeps every point
 
 	private static final int width = 800, height = 800;		// canvas size
 
@@ -35,18 +39,21 @@ public class Editor extends JFrame {
 
 	// Communication
 	private EditorCommunicator comm;			// communication with the sketch server
+	private JComponent canvas;					// where the sketch is drawn, repainted just where shapes change
+	private SketchLayer layer;					// the sketch as last drawn, but for any shape being dragged
 
 	public Editor() {
 		super("Graphical Editor");
 
 		sketch = new Sketch();
+		layer = new SketchLayer();
 
 		// Connect to server
-		comm = new EditorCommunicator(serverIP, this);
+		comm = new EditorCommunicator(serverIP, room, this, binaryProtocol);
 		comm.start();
 
 		// Helpers to create the canvas and GUI (buttons, etc.)
-		JComponent canvas = setupCanvas();
+		canvas = setupCanvas();
 		JComponent gui = setupGUI();
 
 		// Put the buttons and canvas together into the window
@@ -70,6 +77,7 @@ public class Editor extends JFrame {
 			public void paintComponent(Graphics g) {
 				super.paintComponent(g);
 				drawSketch(g);
+				comm.frameDrawn();
 			}
 		};
 		
@@ -159,12 +167,59 @@ public class Editor extends JFrame {
 	}
 
 	/**
-	 * Draws all the shapes in the sketch,
-	 * along with the object currently being drawn in this editor (not yet part of the sketch)
+	 * Redraws the part of the sketch where the shape is (if any), e.g. before and after it changes in the sketch
+	 * @param ID the shape's ID
+	 */
+	public void redraw(int ID, Shape shape) {
+		if (shape == null) return;
+		BoundingBox box = shape.getBounds();
+		layer.invalidate(ID, box);
+		repaint(box);
+	}
+
+	/**
+	 * Redraws that box of the sketch (if any)
+	 */
+	public void redraw(BoundingBox box) {
+		layer.invalidate(box);
+		repaint(box);
+	}
+
+	/**
+	 * Redraws the whole sketch, e.g. after a fresh snapshot
+	 */
+	public void redrawAll() {
+		layer.invalidateAll();
+		repaint();
+	}
+
+	/**
+	 * Repaints just the part of the canvas where the shape is (if any), e.g. one being drawn that isn't in the sketch yet
+	 */
+	public void repaint(Shape shape) {
+		if (shape != null) repaint(shape.getBounds());
+	}
+
+	/**
+	 * Repaints just that box of the canvas (if any)
+	 */
+	public void repaint(BoundingBox box) {
+		if (box == null || canvas == null) return;
+		canvas.repaint(box.x1, box.y1, box.x2 - box.x1 + 1, box.y2 - box.y1 + 1);
+	}
+
+	/**
+	 * Draws all the shapes in the sketch (mostly just copying the layer they were drawn into),
+	 * then on top either the one being dragged, or the object currently being drawn in this editor (not yet part of the sketch)
 	 */
 	public void drawSketch(Graphics g) {
-		sketch.drawAllShapes(g);
-		if (curr != null) {
+		int draggedID = mode == Mode.MOVE ? pressedShapeID : -1;
+		layer.paint(g, sketch, canvas.getWidth(), canvas.getHeight(), draggedID);
+		Shape dragged = sketch.getShape(draggedID);
+		if (dragged != null) {
+			dragged.draw(g);
+		}
+		else if (curr != null) {
 			curr.draw(g);
 		}
 	}
@@ -179,14 +234,19 @@ public class Editor extends JFrame {
 	 * in deleting mode, (request to) delete clicked shape
 	 */
 	private void handlePress(Point p) {
+		Shape before = curr;
 		pressedShapeID = sketch.mouseInShape(p);			// updates current shape if exists
 		if (pressedShapeID != -1) {
 			curr = sketch.getShape(pressedShapeID);
 		}
+		Shape pressed = curr;
 		switch (mode) {
 			case DRAW -> {
 				curr = newShape(p);
 				this.drawFrom = p;
+				if (streamStrokes && curr instanceof Polyline) {
+					comm.beginStroke(p, this.color);
+				}
 			}
 			case MOVE -> {
 				if (pressedShapeID != -1) {
@@ -209,7 +269,9 @@ public class Editor extends JFrame {
 				}
 			}
 		}
-		repaint();
+		repaint(before);
+		redraw(pressedShapeID, pressed);		// e.g. deleted
+		repaint(curr);
 	}
 
 	// Helper function to create a new shape, used when mode is DRAW
@@ -237,6 +299,8 @@ public class Editor extends JFrame {
 	 * in moving mode, (request to) drag the object
 	 */
 	private void handleDrag(Point p) {
+		// where curr was, since it's changed in place while being drawn; a freehand only grows, so its new bounds cover its old ones
+		BoundingBox before = curr != null && !(curr instanceof Polyline) ? curr.getBounds() : null;
 		switch (mode) {
 			case DRAW -> {
 				if (this.curr != null) {
@@ -246,23 +310,27 @@ public class Editor extends JFrame {
 						((Rectangle) curr).setCorners(drawFrom.x, drawFrom.y, p.x, p.y);
 					} else if (this.curr instanceof Polyline) {
 						((Polyline) curr).addPoint(p);
+						if (streamStrokes) comm.streamPoint(p);
 					} else if (this.curr instanceof Segment) {
 						((Segment) curr).setEnd(p.x, p.y);
 					}
 				}
 			}
 			case MOVE -> {
+				curr = sketch.getShape(pressedShapeID);		// the sketch swaps in a new copy of a shape whenever it changes
+				before = curr != null ? curr.getBounds() : null;
 				if (curr != null && curr.contains(p.x, p.y)) {
-					curr.moveBy(p.x - moveFrom.x, p.y - moveFrom.y);
+					int x = curr.getX() + p.x - moveFrom.x;
+					int y = curr.getY() + p.y - moveFrom.y;
 					moveFrom = p;
-					String[] shapeInfo = curr.toString().split(" ");
-					comm.sendMoveRequest(pressedShapeID,
-							Integer.parseInt(shapeInfo[1]),
-							Integer.parseInt(shapeInfo[2]));
+					sketch.moveShapeTo(pressedShapeID, x, y);
+					comm.sendMoveRequest(pressedShapeID, x, y);
+					curr = sketch.getShape(pressedShapeID);
 				}
 			}
 		}
-		repaint();
+		repaint(before);
+		repaint(curr);
 	}
 
 	/**
@@ -271,21 +339,29 @@ public class Editor extends JFrame {
 	 * in moving mode, release it
 	 */
 	private void handleRelease() {
+		repaint(curr);
+		repaint(sketch.getShape(pressedShapeID));		// goes back into the layer, wherever it's ended up
 		switch (mode) {
 			case DRAW:
-				if (curr != null) {
-					comm.sendNewShapeRequest(curr);
+				if (streamStrokes && curr instanceof Polyline) {
+					comm.endStroke();		// the server already has the rest of it
+					curr = null;
+					pressedShapeID = -1;
+				}
+				else if (curr != null) {
+					comm.sendNewShapeRequest(curr instanceof Polyline ? ((Polyline) curr).simplified(simplify) : curr);
 					curr = null;
 					pressedShapeID = -1;
 				}
 			case MOVE:
+				comm.flushMoves();		// make sure the final position goes out
 				curr = null;
 				pressedShapeID = -1;
 		}
-		repaint();
 	}
 
 	public static void main(String[] args) {
+		if (args.length > 0) room = args[0];
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				new Editor();
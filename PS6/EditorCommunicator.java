@@ -1,6 +1,8 @@
 import java.awt.*;
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Handles communication to/from the server for the editor
@@ -8,116 +10,254 @@ import java.net.Socket;
  * @author Selena Zhou, CS10 23W, PS6
  */
 public class EditorCommunicator extends Thread {
-	private PrintWriter out;		// to server
-	private BufferedReader in;		// from server
-	protected Editor editor;		// handling communication for
+	private static final int STROKE_BATCH = 32;					// send a stroke's points once this many are waiting...
+	private static final long STROKE_DELAY = 30_000_000;		// ...or this long after the last batch (ns)
+	private static final int MAX_RETRY_DELAY = 2000;			// longest to wait between tries to reconnect (ms)
+
+	private Socket sock;				// to server
+	private OutputStream out;			// to server
+	private DataInputStream in;			// from server
+	protected Editor editor;			// handling communication for
+	private String serverIP;			// where to (re)connect
+	private String room;				// which of the server's sketches to join
+	private boolean wantBinary;			// whether to ask for BinaryProtocol rather than text
+	private boolean binaryOut = false;	// whether we're sending binary (from right after our handshake)
+	private boolean binaryIn = false;	// whether the server is sending binary (from right after its handshake reply)
+	private boolean resync = false;		// whether the server dropped us for falling behind, so we should reconnect
+	private long epoch = 0;				// the server's epoch from its handshake reply, 0 until we have one
+	private long lastSeq = 0;			// sequence number of the last change we got, to resume from after reconnecting
+	private MoveThrottle moves;			// holds back and coalesces our move requests while dragging
+	private int[] strokePoints = new int[2 * STROKE_BATCH];	// points of our stroke not sent yet, x1, y1, x2, y2 ...
+	private int strokeLength = 0;		// how many ints of strokePoints are in use
+	private long strokeSentAt;			// when we last sent points of our stroke (ns)
 
 	/**
-	 * Establishes connection and in/out pair
+	 * Establishes connection and in/out pair, speaking the binary protocol
 	 */
 	public EditorCommunicator(String serverIP, Editor editor) {
+		this(serverIP, editor, true);
+	}
+
+	/**
+	 * Establishes connection and in/out pair
+	 * @param binary whether to ask for the binary protocol; plain text is handy for debugging, e.g. with EchoServer
+	 */
+	public EditorCommunicator(String serverIP, Editor editor, boolean binary) {
+		this(serverIP, BinaryProtocol.DEFAULT_ROOM, editor, binary);
+	}
+
+	/**
+	 * Establishes connection and in/out pair, in the named room on the server
+	 * @param room which of the server's sketches to join
+	 * @param binary whether to ask for the binary protocol
+	 */
+	public EditorCommunicator(String serverIP, String room, Editor editor, boolean binary) {
 		this.editor = editor;
-		System.out.println("connecting to " + serverIP + "...");
+		this.serverIP = serverIP;
+		this.room = room;
+		this.wantBinary = binary;
 		try {
-			Socket sock = new Socket(serverIP, 4242);
-			out = new PrintWriter(sock.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			System.out.println("...connected");
+			connect();
 		}
 		catch (IOException e) {
 			System.err.println("couldn't connect");
 			System.exit(-1);
 		}
+		moves = new MoveThrottle(this::send);
+		moves.start();
 	}
 
 	/**
-	 * Sends message to the server
+	 * Opens the socket and in/out pair, and says which encoding we want
+	 * (and, if we were connected to this server before, the last change we got from it)
 	 */
-	public void send(String msg) {
-		out.println(msg);
+	private synchronized void connect() throws IOException {
+		System.out.println("connecting to " + serverIP + "...");
+		if (sock != null) sock.close();
+		sock = new Socket(serverIP, 4242);
+		sock.setTcpNoDelay(true);
+		out = new BufferedOutputStream(sock.getOutputStream());
+		in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+		System.out.println("...connected");
+
+		// Handshake, in text; the server switches once it has read this line, so we can switch right away too
+		binaryOut = false;
+		binaryIn = false;
+		send(wantBinary ? BinaryProtocol.helloBinary(epoch, lastSeq, room) : BinaryProtocol.helloText(room));
+		binaryOut = wantBinary;
 	}
 
 	/**
-	 * Keeps listening for and handling (your code) messages from the server
+	 * Keeps trying to connect again, waiting a little longer after each failure
 	 */
-	public void run() {
+	private void reconnect() {
+		int delay = 0;
+		while (true) {
+			try {
+				Thread.sleep(delay);
+				connect();
+				return;
+			}
+			catch (IOException e) {
+				System.out.println("couldn't reconnect: " + e.getMessage());
+				delay = Math.min(MAX_RETRY_DELAY, Math.max(100, 2 * delay));
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sends message to the server
+	 */
+	public synchronized void send(String msg) {
 		try {
-			// Handle messages
-			String line;
-			while ((line = in.readLine()) != null) {
-				System.out.println("received: " + line);
-				processCommand(line);
-				editor.repaint();
+			if (binaryOut) {
+				out.write(BinaryProtocol.encode(Command.parse(msg)));
 			}
+			else {
+				out.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			out.flush();
 		}
 		catch (IOException e) {
 			e.printStackTrace();
 		}
-		finally {
-			System.out.println("server hung up");
+	}
+
+	/**
+	 * Sends command to the server, in whichever encoding we're speaking
+	 */
+	public synchronized void send(Command cmd) {
+		if (!binaryOut) {
+			send(cmd.toString());
+			return;
+		}
+		try {
+			out.write(BinaryProtocol.encode(cmd));
+			out.flush();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Processes command received from SketchServerCommunicator and updates local editor sketch.
-	 * @param str String command, as outlined in command_message_key.txt
-	 */
-	private void processCommand(String str) {
-		String[] tokens = str.split(" ");
-		int shapeID = Integer.parseInt(tokens[1]);
-		switch (tokens[0]) {
-			case "s" -> addShapeToSketch(tokens);					// new shape created
-			case "d" -> editor.getSketch().deleteShape(shapeID);	// delete existing shape
-			case "m" ->												// move existing shape
-					editor.getSketch().moveShapeTo(shapeID, Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
-			case "r" ->												// recolor existing shape
-					editor.getSketch().recolorShape(shapeID, new Color(Integer.parseInt(tokens[2])));
-		}
-	}
-
-	/**
-	 * Private helper function that adds a new shape to sketch based on what type of shape it is.
-	 * @param tokens String command split into tokens, outlined in command_message_key.txt
-	 */
-	private void addShapeToSketch(String[] tokens) {
-		Sketch editorSketch = editor.getSketch();
-		int shapeID = Integer.parseInt(tokens[1]);
-		Shape shape = null;
-		switch (tokens[2]) {
-			case "ellipse":
-				shape = new Ellipse(Integer.parseInt(tokens[3]),
-						Integer.parseInt(tokens[4]),
-						Integer.parseInt(tokens[5]),
-						Integer.parseInt(tokens[6]),
-						new Color(Integer.parseInt(tokens[7])));
-				break;
-			case "rectangle":
-				shape = new Rectangle(Integer.parseInt(tokens[3]),
-						Integer.parseInt(tokens[4]),
-						Integer.parseInt(tokens[5]),
-						Integer.parseInt(tokens[6]),
-						new Color(Integer.parseInt(tokens[7])));
-				break;
-			case "freehand":
-				int size = tokens.length;
-				shape = new Polyline(new Point(Integer.parseInt(tokens[3]), Integer.parseInt(tokens[4])),
-									 new Color(Integer.parseInt(tokens[size-1])));
-				for (int i = 5; i < size-1; i+=2) {
-					int x = Integer.parseInt(tokens[i]);
-					int y = Integer.parseInt(tokens[i+1]);
-					((Polyline)shape).addPoint(new Point(x, y));
+	 * Keeps listening for and handling (your code) messages from the server
+	 */
+	public void run() {
+		while (true) {
+			try {
+				// Handle messages
+				Command cmd;
+				while ((cmd = receive()) != null) {
+					try {
+						// redraw just where the shape was and is now, unless the whole sketch changed
+						Shape before = editor.getSketch().getShape(cmd.getShapeID());
+						processCommand(cmd);
+						if (cmd.getType() == Command.SNAPSHOT) {
+							editor.redrawAll();
+						}
+						else if (cmd.getType() == Command.POINTS && before instanceof Polyline) {
+							editor.redraw(appendedBounds((Polyline) before, cmd.getPoints()));
+						}
+						else {
+							editor.redraw(cmd.getShapeID(), before);
+							editor.redraw(cmd.getShapeID(), editor.getSketch().getShape(cmd.getShapeID()));
+						}
+					}
+					catch (RuntimeException e) {
+						// one message we can't make sense of shouldn't stop us listening
+						e.printStackTrace();
+					}
 				}
-				break;
-			case "segment":
-				shape = new Segment(Integer.parseInt(tokens[3]),
-						Integer.parseInt(tokens[4]),
-						Integer.parseInt(tokens[5]),
-						Integer.parseInt(tokens[6]),
-						new Color(Integer.parseInt(tokens[7])));
-				break;
+				System.out.println(resync ? "server dropped us for falling behind" : "server hung up");
+			}
+			catch (IOException e) {
+				System.out.println("lost the server: " + e.getMessage());
+			}
+
+			// Connect again; a binary session picks up where it left off, or gets a fresh snapshot if that's too far back.
+			// Text has no sequence numbers, so it starts over with a fresh copy of the sketch.
+			if (!wantBinary) {
+				editor.getSketch().clear();
+				editor.redrawAll();
+			}
+			resync = false;
+			reconnect();
+		}
+	}
+
+	/**
+	 * @return the box around the segments just appended to a stroke: from its last point before, through the new points
+	 */
+	private static BoundingBox appendedBounds(Polyline stroke, int[] xy) {
+		int last = stroke.size() - 1;
+		int x1 = stroke.getX(last), y1 = stroke.getY(last), x2 = x1, y2 = y1;
+		for (int i = 0; i+1 < xy.length; i += 2) {
+			x1 = Math.min(x1, xy[i]); y1 = Math.min(y1, xy[i+1]);
+			x2 = Math.max(x2, xy[i]); y2 = Math.max(y2, xy[i+1]);
+		}
+		return new BoundingBox(x1, y1, x2, y2);
+	}
+
+	/**
+	 * Reads the next message, handling the server's handshake reply along the way
+	 * @return the message, or null once the server hangs up
+	 */
+	private Command receive() throws IOException {
+		while (!binaryIn) {
+			String line = BinaryProtocol.readLine(in);
+			if (line == null) return null;
+			System.out.println("received: " + line);
+			if (line.startsWith("h ")) {
+				binaryIn = line.startsWith(BinaryProtocol.HELLO_BINARY);
+				String[] tokens = line.split(" ");
+				if (binaryIn && tokens.length > 2) epoch = Long.parseLong(tokens[2]);
+				continue;
+			}
+			try {
+				return Command.parse(line);
+			}
+			catch (RuntimeException e) {
+				System.out.println("ignored: " + line);
+			}
 		}
-		if (shape != null) {
-			editorSketch.addShape(shapeID, shape);
+		Command cmd = BinaryProtocol.read(in);
+		if (cmd != null && cmd.getType() == Command.SNAPSHOT) {
+			System.out.println("received: snapshot of " + cmd.getShapes().size() + " shapes");
+		}
+		else if (cmd != null && BinaryProtocol.DEBUG) {
+			System.out.println("received: " + cmd);
+		}
+		return cmd;
+	}
+
+	/**
+	 * Processes command received from SketchServerCommunicator and updates local editor sketch.
+	 * @param cmd the command, as outlined in command_message_key.txt
+	 */
+	private void processCommand(Command cmd) {
+		int shapeID = cmd.getShapeID();
+		if (cmd.getSeq() > 0) lastSeq = cmd.getSeq();
+		// our own stroke handed straight back by something that doesn't give out IDs (e.g. EchoServer)
+		if (shapeID < 0 && cmd.getType() != Command.SNAPSHOT && cmd.getType() != Command.RESYNC) return;
+		switch (cmd.getType()) {
+			case Command.SHAPE -> {												// new shape created
+				if (cmd.getShape() != null) editor.getSketch().addShape(shapeID, cmd.getShape());
+			}
+			case Command.DELETE -> editor.getSketch().deleteShape(shapeID);		// delete existing shape
+			case Command.MOVE -> {												// move existing shape
+				if (moves.received(cmd)) editor.getSketch().moveShapeTo(shapeID, cmd.getX(), cmd.getY());
+			}
+			case Command.RECOLOR ->												// recolor existing shape
+					editor.getSketch().recolorShape(shapeID, new Color(cmd.getRGB()));
+			case Command.STROKE_BEGIN ->										// someone started a freehand stroke
+					editor.getSketch().addShape(shapeID, new Polyline(new Point(cmd.getX(), cmd.getY()), new Color(cmd.getRGB())));
+			case Command.POINTS -> editor.getSketch().appendPoints(shapeID, cmd.getPoints());	// more of their stroke
+			case Command.SNAPSHOT -> editor.getSketch().load(cmd.getShapes());		// everything so far, on joining
+			case Command.RESYNC -> resync = true;								// server is dropping us, see run()
 		}
 	}
 
@@ -125,19 +265,73 @@ public class EditorCommunicator extends Thread {
 	// messages are more clearly outlined in command_message_key.txt
 
 	public void sendNewShapeRequest(Shape s) {
-		send("a " + s.toString());
+		moves.flush();		// anything else we send stays in order after our moves
+		send(Command.add(s));
 	}
 
 	public void sendMoveRequest(int shapeID, int x, int y) {
-		send(String.format("m %d %d %d", shapeID, x, y));
+		moves.offer(Command.move(shapeID, x, y));		// goes out at the throttle's pace, see flushMoves()
+	}
+
+	/**
+	 * Sends any move requests still being held back, e.g. the final position when a drag ends
+	 */
+	public void flushMoves() {
+		moves.flush();
+	}
+
+	/**
+	 * Lets the move throttle know the editor just repainted, so it won't send moves faster than we draw them
+	 */
+	public void frameDrawn() {
+		moves.frameDrawn();
+	}
+
+	/**
+	 * Starts streaming a freehand stroke, so others see it as it's drawn; the server picks its ID
+	 */
+	public synchronized void beginStroke(Point p, Color c) {
+		moves.flush();
+		strokeLength = 0;
+		strokeSentAt = System.nanoTime();
+		send(Command.strokeBegin(-1, p.x, p.y, c.getRGB()));
+	}
+
+	/**
+	 * Adds a point to the stroke, sent along with others in a small batch
+	 */
+	public synchronized void streamPoint(Point p) {
+		strokePoints[strokeLength++] = p.x;
+		strokePoints[strokeLength++] = p.y;
+		if (strokeLength == strokePoints.length || System.nanoTime() - strokeSentAt >= STROKE_DELAY) {
+			sendStrokePoints();
+		}
+	}
+
+	/**
+	 * Sends the rest of the stroke and finishes it
+	 */
+	public synchronized void endStroke() {
+		sendStrokePoints();
+		send(Command.strokeEnd(-1, null));
+	}
+
+	private void sendStrokePoints() {
+		if (strokeLength > 0) {
+			send(Command.points(-1, Arrays.copyOf(strokePoints, strokeLength)));
+			strokeLength = 0;
+		}
+		strokeSentAt = System.nanoTime();
 	}
 
 	public void sendDeleteRequest(int shapeID) {
-		send(String.format("d %d", shapeID));
+		moves.flush();
+		send(Command.of(Command.DELETE, shapeID));
 	}
 
 	public void sendRecolorRequest(int shapeID, Color c) {
-		send(String.format("r %d %d", shapeID, c.getRGB()));
+		moves.flush();
+		send(Command.recolor(shapeID, c.getRGB()));
 	}
 
 }
@@ -41,14 +41,46 @@ public class Ellipse implements Shape {
 		this.y2 = Math.max(y1, y2);		
 	}
 
+	/**
+	 * @return coordinates of the corners, as in toString
+	 */
+	public int getX1() {
+		return x1;
+	}
+
+	public int getY1() {
+		return y1;
+	}
+
+	public int getX2() {
+		return x2;
+	}
+
+	public int getY2() {
+		return y2;
+	}
+
+	@Override
+	public int getX() {
+		return x1;
+	}
+
+	@Override
+	public int getY() {
+		return y1;
+	}
+
 	@Override
 	public boolean contains(int x, int y) {
-		double a = (x2-x1)/2.0, b = (y2-y1)/2.0;
-		double dx = x - (x1 + a); // horizontal distance from center
-		double dy = y - (y1 + b); // vertical distance from center
+		if (x < x1 || x > x2 || y < y1 || y > y2) return false;		// not even in the bounding box
+		if (x1 == x2 || y1 == y2) return false;		// flat, so nothing's inside
+		// Distances from the center and the axes, all doubled so they stay whole numbers
+		double dx = 2.0*x - (x1 + x2), dy = 2.0*y - (y1 + y2);
+		double w = x2 - x1, h = y2 - y1;
 
-		// Apply the standard geometry formula. (See CRC, 29th edition, p. 178.)
-		return Math.pow(dx / a, 2) + Math.pow(dy / b, 2) <= 1;
+		// Apply the standard geometry formula, (dx/w)^2 + (dy/h)^2 <= 1, multiplied through by (wh)^2 to avoid dividing.
+		// (See CRC, 29th edition, p. 178.)
+		return dx*dx*h*h + dy*dy*w*w <= w*w*h*h;
 	}
 
 	@Override
@@ -57,6 +89,11 @@ public class Ellipse implements Shape {
 		x2 += dx; y2 += dy;
 	}
 
+	@Override
+	public BoundingBox getBounds() {
+		return new BoundingBox(x1, y1, x2, y2);
+	}
+
 	@Override
 	public Color getColor() {
 		return color;
@@ -73,6 +110,11 @@ public class Ellipse implements Shape {
 		g.fillOval(x1, y1, x2-x1, y2-y1);
 	}
 
+	@Override
+	public Shape copy() {
+		return new Ellipse(x1, y1, x2, y2, color);
+	}
+
 	@Override
 	public String toString() {
 		return "ellipse "+x1+" "+y1+" "+x2+" "+y2+" "+color.getRGB();
@@ -0,0 +1,511 @@
+import java.awt.Color;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Load test for a SketchServer: opens any number of simulated editors (bots, no windows) that speak the binary
+ * protocol as EditorCommunicator does, and have them add, drag, recolor and delete shapes and draw freehand strokes
+ * at a steady rate. Measures how long each change takes from being sent to having been echoed to every editor in the
+ * room (and to each editor on its own), and prints percentiles and a histogram of those, plus how many changes and
+ * messages the server got through per second and how much CPU it used.
+ *
+ * Every change carries something unique that comes back in its echo, so it can be matched up without changing the
+ * protocol: a new shape's (or stroke's) color and a recolor's color are drawn from a counter, a move is told apart by
+ * its shape and position, points by their values. Moves the server coalesces away never come back; those are
+ * counted separately rather than as lost.
+ *
+ * Usage: java LoadGenerator [host], configurable with -Dload.clients=... (bots), -Dload.rate=... (gestures per second
+ * per bot), -Dload.seconds=... (how long to measure), -Dload.warmupSeconds=..., -Dload.room=..., -Dload.rooms=...
+ * (spread the bots over this many rooms), -Dload.mix=add:15,drag:40,recolor:15,delete:10,stroke:20 (how often each
+ * gesture comes up), -Dload.serverPid=... (which process's CPU to report; found by name on this machine if not given)
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class LoadGenerator {
+	private static final int CLIENTS = Integer.getInteger("load.clients", 50);
+	private static final double RATE = Double.parseDouble(System.getProperty("load.rate", "1"));
+	private static final int SECONDS = Integer.getInteger("load.seconds", 30);
+	private static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 5);
+	private static final String ROOM = System.getProperty("load.room", "load");
+	private static final int ROOMS = Integer.getInteger("load.rooms", 1);
+	private static final String MIX = System.getProperty("load.mix", "add:15,drag:40,recolor:15,delete:10,stroke:20");
+	private static final long SERVER_PID = Long.getLong("load.serverPid", 0);
+
+	private static final int REPORT_SECONDS = 5;			// how often to print progress
+	private static final long TIMEOUT = 5_000_000_000L;	// give up on an echo after this (ns)
+	private static final long FRAME = 16_000_000;			// time between moves while dragging, and between batches of points (ns)
+	private static final int DRAG_STEPS = 30;				// moves in a drag
+	private static final int STROKE_BATCHES = 30;			// batches of points in a stroke...
+	private static final int BATCH_POINTS = 2;				// ...of this many points each
+	private static final int CANVAS = 800;					// bots draw within this square
+
+	// what's in each kind of key, in its top bits
+	private static final long COLOR_KEY = 1L << 60, MOVE_KEY = 2L << 60, DELETE_KEY = 3L << 60, POINTS_KEY = 4L << 60;
+
+	private static String host;												// where the server is
+	private static final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<>();	// changes not yet echoed everywhere, by key
+	private static final AtomicInteger colors = new AtomicInteger();		// hands out unique colors
+	private static final Map<String, Integer> peers = new HashMap<>();		// bots in each room
+	private static volatile long measureFrom = Long.MAX_VALUE;				// changes sent before this (ns) are warmup
+	private static final Map<Character, Histogram> everyone = new TreeMap<>();	// time for a change to reach every bot, by type
+	private static final Histogram everyoneAll = new Histogram();			// ...of any type
+	private static final Histogram each = new Histogram();					// time for a change to reach each bot
+	private static final AtomicLong sent = new AtomicLong();				// changes sent
+	private static final AtomicLong received = new AtomicLong();			// messages received, by all bots together
+	private static final AtomicLong coalesced = new AtomicLong();			// moves never echoed, presumably coalesced
+	private static final AtomicLong lost = new AtomicLong();				// other changes not echoed everywhere in time
+	private static final AtomicInteger dead = new AtomicInteger();			// bots the server hung up on
+
+	public static void main(String[] args) throws Exception {
+		host = args.length > 0 ? args[0] : "localhost";
+		for (char type : new char[] {Command.ADD, Command.MOVE, Command.RECOLOR, Command.DELETE, Command.STROKE_BEGIN, Command.POINTS}) {
+			everyone.put(type, new Histogram());
+		}
+		String[] gestures = new String[100];
+		int[] weights = new int[100];
+		int kinds = 0, total = 0;
+		for (String part : MIX.split(",")) {
+			String[] nameWeight = part.trim().split(":");
+			gestures[kinds] = nameWeight[0];
+			total += weights[kinds++] = Integer.parseInt(nameWeight[1]);
+		}
+
+		System.out.println("starting " + CLIENTS + " bots against " + host + " in " + ROOMS + " room(s), "
+				+ RATE + " gestures/s each, mix " + MIX);
+		CountDownLatch joined = new CountDownLatch(CLIENTS);
+		List<Bot> bots = new ArrayList<>();
+		for (int i = 0; i < CLIENTS; i++) {
+			String room = ROOMS > 1 ? ROOM + "-" + (i % ROOMS) : ROOM;
+			peers.merge(room, 1, Integer::sum);
+			Bot bot = new Bot(i, room, gestures, weights, kinds, total, joined);
+			bots.add(bot);
+			bot.start();
+		}
+		joined.await();
+		System.out.println("all bots joined; warming up for " + WARMUP_SECONDS + "s");
+		for (Bot bot : bots) {
+			bot.actor.start();
+		}
+
+		ProcessHandle server = findServer();
+		Thread.sleep(WARMUP_SECONDS * 1000L);
+		measureFrom = System.nanoTime();
+		long start = measureFrom, last = start;
+		long sentBefore = sent.get(), receivedBefore = received.get();
+		Duration serverCpuBefore = cpu(server), ownCpuBefore = cpu(ProcessHandle.current());
+		Duration serverCpuLast = serverCpuBefore, ownCpuLast = ownCpuBefore;
+		long sentLast = sentBefore, receivedLast = receivedBefore;
+		for (long now = start; now - start < SECONDS * 1_000_000_000L; now = System.nanoTime()) {
+			Thread.sleep(1000);
+			expire();
+			now = System.nanoTime();
+			if (now - last >= REPORT_SECONDS * 1_000_000_000L) {
+				Duration serverCpu = cpu(server), ownCpu = cpu(ProcessHandle.current());
+				System.out.println(String.format("%3ds: %8.1f changes/s, %10.1f messages/s, %6d waiting, server CPU %s, ours %s, p99 %s",
+						(now - start) / 1_000_000_000, perSecond(sent.get() - sentLast, now - last),
+						perSecond(received.get() - receivedLast, now - last), pending.size(),
+						percent(serverCpuLast, serverCpu, now - last), percent(ownCpuLast, ownCpu, now - last),
+						millis(everyoneAll.percentile(0.99))));
+				last = now;
+				sentLast = sent.get();
+				receivedLast = received.get();
+				serverCpuLast = serverCpu;
+				ownCpuLast = ownCpu;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		Duration serverCpu = cpu(server), ownCpu = cpu(ProcessHandle.current());
+
+		System.out.println();
+		System.out.println("over " + elapsed / 1_000_000_000 + "s, " + CLIENTS + " bots in " + ROOMS + " room(s):");
+		System.out.println(String.format("  %.1f changes/s sent, %.1f messages/s received (all bots together)",
+				perSecond(sent.get() - sentBefore, elapsed), perSecond(received.get() - receivedBefore, elapsed)));
+		System.out.println("  server CPU " + percent(serverCpuBefore, serverCpu, elapsed)
+				+ (server != null ? " (pid " + server.pid() + ")" : "") + ", ours " + percent(ownCpuBefore, ownCpu, elapsed)
+				+ " (100% is one core)");
+		System.out.println("  " + coalesced.get() + " moves coalesced, " + lost.get() + " other changes not echoed everywhere within "
+				+ TIMEOUT / 1_000_000_000 + "s, " + pending.size() + " still waiting, " + dead.get() + " bots disconnected");
+		System.out.println("latency from sending a change to every bot having it:");
+		System.out.println("  " + String.format("%-12s", "all") + everyoneAll.summary());
+		for (Map.Entry<Character, Histogram> entry : everyone.entrySet()) {
+			if (entry.getValue().count() > 0) {
+				System.out.println("  " + String.format("%-12s", name(entry.getKey())) + entry.getValue().summary());
+			}
+		}
+		System.out.println("latency from sending a change to each bot having it:");
+		System.out.println("  " + String.format("%-12s", "all") + each.summary());
+		System.out.println("histogram (to every bot):");
+		everyoneAll.print(System.out);
+		System.exit(0);
+	}
+
+	/**
+	 * Notes a change about to be sent, to be matched up with its echoes
+	 */
+	private static void expect(long key, char type, Bot from) {
+		Pending change = new Pending(type, from, peers.get(from.room));
+		pending.put(key, change);
+		sent.incrementAndGet();
+	}
+
+	/**
+	 * Matches up a message a bot got with the change it echoes, if it's one we're waiting for
+	 */
+	private static void echoed(Command cmd, Bot to) {
+		long now = System.nanoTime();
+		received.incrementAndGet();
+		long key;
+		switch (cmd.getType()) {
+			case Command.SHAPE -> key = COLOR_KEY | colorOf(cmd.getShape());
+			case Command.RECOLOR, Command.STROKE_BEGIN -> key = COLOR_KEY | (cmd.getRGB() & 0xffffff);
+			case Command.MOVE -> key = moveKey(cmd.getShapeID(), cmd.getX(), cmd.getY());
+			case Command.DELETE -> key = DELETE_KEY | cmd.getShapeID();
+			case Command.POINTS -> key = POINTS_KEY | (Arrays.hashCode(cmd.getPoints()) & 0xffffffffL);
+			default -> {
+				return;
+			}
+		}
+		Pending change = pending.get(key);
+		if (change == null) return;
+		// the sender learns its new shape's ID from the echo, so it can drag it around later
+		if (change.from == to && (change.type == Command.ADD || change.type == Command.STROKE_BEGIN)) {
+			to.shapes.add(cmd.getShapeID());
+		}
+		boolean measured = change.sentAt >= measureFrom;
+		if (measured) each.record(now - change.sentAt);
+		if (change.remaining.decrementAndGet() == 0 && pending.remove(key, change) && measured) {
+			everyone.get(change.type).record(now - change.sentAt);
+			everyoneAll.record(now - change.sentAt);
+		}
+	}
+
+	/**
+	 * Gives up on changes that have waited too long for their echoes
+	 */
+	private static void expire() {
+		long now = System.nanoTime();
+		for (Map.Entry<Long, Pending> entry : pending.entrySet()) {
+			Pending change = entry.getValue();
+			if (now - change.sentAt > TIMEOUT && pending.remove(entry.getKey(), change) && change.sentAt >= measureFrom) {
+				if (change.type == Command.MOVE) coalesced.incrementAndGet();
+				else lost.incrementAndGet();
+			}
+		}
+	}
+
+	private static long moveKey(int shapeID, int x, int y) {
+		return MOVE_KEY | (shapeID & 0xfffffffffL) << 24 | (x & 0xfff) << 12 | (y & 0xfff);
+	}
+
+	private static int colorOf(Shape shape) {
+		return shape != null ? shape.getColor().getRGB() & 0xffffff : -1;
+	}
+
+	/**
+	 * @return a color no change in flight has
+	 */
+	private static int nextColor() {
+		return colors.incrementAndGet() & 0xffffff;
+	}
+
+	/**
+	 * Finds the server's process, to report its CPU: the one given, else one on this machine running SketchServer
+	 */
+	private static ProcessHandle findServer() {
+		if (SERVER_PID > 0) return ProcessHandle.of(SERVER_PID).orElse(null);
+		return ProcessHandle.allProcesses()
+				.filter(p -> p.info().command().map(command -> command.endsWith("java")).orElse(false))
+				.filter(p -> p.info().commandLine().map(line -> line.contains("SketchServer")).orElse(false))
+				.findFirst().orElse(null);
+	}
+
+	private static Duration cpu(ProcessHandle process) {
+		if (process == null) return null;
+		return process.info().totalCpuDuration().orElse(null);
+	}
+
+	private static String percent(Duration before, Duration after, long nanos) {
+		if (before == null || after == null) return "n/a";
+		return String.format("%.0f%%", 100.0 * after.minus(before).toNanos() / nanos);
+	}
+
+	private static double perSecond(long count, long nanos) {
+		return count * 1e9 / nanos;
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.2fms", nanos / 1e6);
+	}
+
+	private static String name(char type) {
+		return switch (type) {
+			case Command.ADD -> "add";
+			case Command.MOVE -> "move";
+			case Command.RECOLOR -> "recolor";
+			case Command.DELETE -> "delete";
+			case Command.STROKE_BEGIN -> "stroke";
+			case Command.POINTS -> "points";
+			default -> String.valueOf(type);
+		};
+	}
+
+	/**
+	 * A change sent, waiting to be echoed to every bot in its room
+	 */
+	private static class Pending {
+		final long sentAt = System.nanoTime();	// when it was sent (ns)
+		final char type;						// what kind of change
+		final Bot from;							// who sent it
+		final AtomicInteger remaining;			// how many bots haven't got it yet
+
+		Pending(char type, Bot from, int peers) {
+			this.type = type;
+			this.from = from;
+			remaining = new AtomicInteger(peers);
+		}
+	}
+
+	/**
+	 * One simulated editor: this thread reads from the server, and its actor sends it gestures at random
+	 */
+	private static class Bot extends Thread {
+		final String room;					// which room it's in
+		final Thread actor;					// sends the gestures
+		final List<Integer> shapes = Collections.synchronizedList(new ArrayList<>());	// IDs of the shapes it made and hasn't deleted
+		private final CountDownLatch joined;	// counted down once the server has sent the sketch
+		private final String[] gestures;	// names of the gestures in the mix...
+		private final int[] weights;		// ...and how often each comes up
+		private final int kinds, total;		// how many gestures, and their weights added up
+		private Socket sock;				// to server
+		private OutputStream out;			// to server
+		private DataInputStream in;			// from server
+
+		Bot(int number, String room, String[] gestures, int[] weights, int kinds, int total, CountDownLatch joined) throws IOException {
+			super("bot-" + number);
+			setDaemon(true);
+			this.room = room;
+			this.gestures = gestures;
+			this.weights = weights;
+			this.kinds = kinds;
+			this.total = total;
+			this.joined = joined;
+			sock = new Socket(host, 4242);
+			sock.setTcpNoDelay(true);
+			out = new BufferedOutputStream(sock.getOutputStream());
+			in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+			out.write((BinaryProtocol.helloBinary(0, 0, room) + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			actor = new Thread(this::act, "bot-" + number + "-actor");
+			actor.setDaemon(true);
+		}
+
+		/**
+		 * Reads from the server until it hangs up: the handshake reply, then everything it broadcasts
+		 */
+		public void run() {
+			try {
+				String hello = BinaryProtocol.readLine(in);
+				if (hello == null || !hello.startsWith(BinaryProtocol.HELLO_BINARY)) throw new IOException("bad handshake: " + hello);
+				Command cmd;
+				while ((cmd = BinaryProtocol.read(in)) != null) {
+					if (cmd.getType() == Command.SNAPSHOT) joined.countDown();
+					else if (cmd.getType() == Command.RESYNC) break;
+					else echoed(cmd, this);
+				}
+				System.out.println(getName() + ": server hung up");
+			}
+			catch (IOException e) {
+				System.out.println(getName() + ": lost the server: " + e.getMessage());
+			}
+			dead.incrementAndGet();
+			joined.countDown();
+			actor.interrupt();
+		}
+
+		/**
+		 * Picks gestures from the mix and performs them, with exponentially distributed pauses in between
+		 * (so all the bots together send like independent users would)
+		 */
+		private void act() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			try {
+				while (true) {
+					Thread.sleep((long) (-Math.log(1 - random.nextDouble()) / RATE * 1000));
+					int pick = random.nextInt(total), i = 0;
+					while (pick >= weights[i]) pick -= weights[i++];
+					// moving, recoloring or deleting needs a shape of our own; make one if we have none
+					String gesture = shapes.isEmpty() && !gestures[i].equals("stroke") ? "add" : gestures[i];
+					switch (gesture) {
+						case "add" -> add(random);
+						case "drag" -> drag(random);
+						case "recolor" -> {
+							int color = nextColor();
+							int shapeID = pickShape(random);
+							expect(COLOR_KEY | color, Command.RECOLOR, this);
+							send(Command.recolor(shapeID, color));
+						}
+						case "delete" -> {
+							int shapeID = shapes.remove(random.nextInt(shapes.size()));
+							expect(DELETE_KEY | shapeID, Command.DELETE, this);
+							send(Command.of(Command.DELETE, shapeID));
+						}
+						case "stroke" -> stroke(random);
+						default -> throw new IllegalArgumentException("unknown gesture " + gesture);
+					}
+				}
+			}
+			catch (InterruptedException | IOException e) {
+				// the server's gone; run() has already said so
+			}
+		}
+
+		private void add(ThreadLocalRandom random) throws IOException {
+			int x1 = random.nextInt(CANVAS), y1 = random.nextInt(CANVAS);
+			int x2 = x1 + random.nextInt(10, 200), y2 = y1 + random.nextInt(10, 200);
+			int color = nextColor();
+			Shape shape = switch (random.nextInt(3)) {
+				case 0 -> new Ellipse(x1, y1, x2, y2, new Color(color));
+				case 1 -> new Rectangle(x1, y1, x2, y2, new Color(color));
+				default -> new Segment(x1, y1, x2, y2, new Color(color));
+			};
+			expect(COLOR_KEY | color, Command.ADD, this);
+			send(Command.add(shape));
+		}
+
+		/**
+		 * Drags one of our shapes around in small steps, a frame apart
+		 */
+		private void drag(ThreadLocalRandom random) throws IOException, InterruptedException {
+			int shapeID = pickShape(random);
+			int x = random.nextInt(CANVAS), y = random.nextInt(CANVAS);
+			for (int step = 0; step < DRAG_STEPS; step++) {
+				x = Math.max(0, Math.min(CANVAS, x + random.nextInt(-8, 9)));
+				y = Math.max(0, Math.min(CANVAS, y + random.nextInt(-8, 9)));
+				expect(moveKey(shapeID, x, y), Command.MOVE, this);
+				send(Command.move(shapeID, x, y));
+				Thread.sleep(FRAME / 1_000_000);
+			}
+		}
+
+		/**
+		 * Draws a wandering freehand stroke, streaming its points a few at a time, a frame apart
+		 */
+		private void stroke(ThreadLocalRandom random) throws IOException, InterruptedException {
+			int x = random.nextInt(CANVAS), y = random.nextInt(CANVAS);
+			int color = nextColor();
+			expect(COLOR_KEY | color, Command.STROKE_BEGIN, this);
+			send(Command.strokeBegin(-1, x, y, color));
+			for (int batch = 0; batch < STROKE_BATCHES; batch++) {
+				Thread.sleep(FRAME / 1_000_000);
+				int[] points = new int[2 * BATCH_POINTS];
+				for (int i = 0; i < points.length; i += 2) {
+					points[i] = x += random.nextInt(-6, 7);
+					points[i+1] = y += random.nextInt(-6, 7);
+				}
+				expect(POINTS_KEY | (Arrays.hashCode(points) & 0xffffffffL), Command.POINTS, this);
+				send(Command.points(-1, points));
+			}
+			send(Command.strokeEnd(-1, null));
+		}
+
+		private int pickShape(ThreadLocalRandom random) {
+			synchronized (shapes) {
+				return shapes.get(random.nextInt(shapes.size()));
+			}
+		}
+
+		private synchronized void send(Command cmd) throws IOException {
+			out.write(BinaryProtocol.encode(cmd));
+			out.flush();
+		}
+	}
+
+	/**
+	 * Counts of latencies in buckets about 3% wide (exact below 64 microseconds), so percentiles can be read off without keeping
+	 * every sample; safe to record into from any thread
+	 */
+	private static class Histogram {
+		private static final int SUB = 32;					// buckets per doubling
+		private final AtomicLongArray counts = new AtomicLongArray(2 * SUB + 58 * SUB);
+		private final AtomicLong max = new AtomicLong();	// longest recorded (ns)
+
+		void record(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			counts.incrementAndGet(index(micros));
+			max.accumulateAndGet(nanos, Math::max);
+		}
+
+		private static int index(long micros) {
+			if (micros < 2 * SUB) return (int) micros;
+			int exponent = 63 - Long.numberOfLeadingZeros(micros), shift = exponent - 5;
+			return 2 * SUB + (exponent - 6) * SUB + (int) ((micros >> shift) - SUB);
+		}
+
+		/**
+		 * @return the smallest latency (microseconds) that falls in the bucket
+		 */
+		private static long lowest(int index) {
+			if (index < 2 * SUB) return index;
+			int exponent = (index - 2 * SUB) / SUB + 6;
+			return (long) ((index - 2 * SUB) % SUB + SUB) << (exponent - 5);
+		}
+
+		long count() {
+			long count = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				count += counts.get(i);
+			}
+			return count;
+		}
+
+		/**
+		 * @return the latency (ns) that the given fraction of those recorded are at or under, to within a bucket
+		 */
+		long percentile(double fraction) {
+			long target = (long) Math.ceil(fraction * count()), seen = 0;
+			if (target == 0) return 0;
+			for (int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if (seen >= target) return Math.min(max.get(), (lowest(i) + lowest(i + 1)) * 500);
+			}
+			return max.get();
+		}
+
+		String summary() {
+			return String.format("n=%-9d p50 %-10s p90 %-10s p99 %-10s p99.9 %-10s max %s", count(),
+					millis(percentile(0.5)), millis(percentile(0.9)), millis(percentile(0.99)), millis(percentile(0.999)),
+					millis(max.get()));
+		}
+
+		/**
+		 * Prints how many fell in each doubling of latency, from under a millisecond up
+		 */
+		void print(PrintStream out) {
+			long total = count();
+			if (total == 0) return;
+			long[] doublings = new long[64];
+			for (int i = 0; i < counts.length(); i++) {
+				long micros = lowest(i);
+				int slot = micros < 1000 ? 0 : 64 - Long.numberOfLeadingZeros(micros / 1000);
+				doublings[slot] += counts.get(i);
+			}
+			long cumulative = 0;
+			for (int slot = 0; slot < doublings.length && cumulative < total; slot++) {
+				cumulative += doublings[slot];
+				String range = slot == 0 ? "< 1ms" : "< " + (1L << slot) + "ms";
+				int bar = (int) Math.round(50.0 * doublings[slot] / total);
+				out.println(String.format("  %-9s %10d %7.3f%% %s", range, doublings[slot],
+						100.0 * cumulative / total, "#".repeat(bar)));
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+
+/**
+ * The thread that does the writing for any number of OpLogs (every room on one shard), so the server has a writer per
+ * shard rather than a thread per room. A log tells it when changes are waiting, and each log that asked gets a group
+ * commit of everything it has in turn; a log written under FsyncPolicy.INTERVAL but not forced yet is forced once its
+ * interval is up, even if nothing more is written to it.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class LogWriter extends Thread {
+	private static final int BUFFER_SIZE = 1 << 20;		// write in chunks of up to this many bytes
+
+	private LinkedHashSet<OpLog> ready = new LinkedHashSet<>();		// logs with changes waiting (or closing), in the order they asked
+	private LinkedHashSet<OpLog> unforced = new LinkedHashSet<>();	// logs written but waiting on their interval to be forced (only this thread)
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);	// where a commit is gathered to be written, for every log
+
+	public LogWriter(String name) {
+		super(name);
+		setDaemon(true);
+	}
+
+	/**
+	 * Has the log's waiting changes written soon; never waits on the disk
+	 */
+	synchronized void ready(OpLog log) {
+		ready.add(log);
+		notifyAll();
+	}
+
+	/**
+	 * Commits whatever each log has piled up, over and over, and forces the logs whose interval is up
+	 */
+	public void run() {
+		while (true) {
+			LinkedHashSet<OpLog> batch;
+			synchronized (this) {
+				try {
+					while (ready.isEmpty()) {
+						long next = nextForce();
+						if (next == Long.MAX_VALUE) {
+							wait();
+							continue;
+						}
+						long wait = next - System.nanoTime();
+						if (wait <= 0) break;
+						wait(wait / 1_000_000, (int) (wait % 1_000_000));
+					}
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				batch = ready;
+				ready = new LinkedHashSet<>();
+			}
+			long now = System.nanoTime();
+			for (OpLog log : unforced) {
+				if (log.forceDue() <= now) batch.add(log);
+			}
+			for (OpLog log : batch) {
+				log.service(buffer);
+				if (log.forceDue() != Long.MAX_VALUE) unforced.add(log);
+				else unforced.remove(log);
+			}
+		}
+	}
+
+	/**
+	 * @return when the next of the unforced logs is due to be forced (ns), or Long.MAX_VALUE if none is
+	 */
+	private long nextForce() {
+		long next = Long.MAX_VALUE;
+		for (OpLog log : unforced) {
+			next = Math.min(next, log.forceDue());
+		}
+		return next;
+	}
+}
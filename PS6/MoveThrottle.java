@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Client-side throttle for move requests: keeps only the latest pending move per shape, and sends them at a rate
+ * adapted to how fast the server echoes our moves back (round-trip time) and how fast we're actually repainting.
+ * Dragging still redraws locally on every mouse event; only the network sees fewer moves.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class MoveThrottle extends Thread {
+	private static final long MIN_INTERVAL = 8_000_000;		// never send more often than this (ns)
+	private static final long MAX_INTERVAL = 100_000_000;	// never hold a move back longer than this (ns)
+	private static final long ECHO_TIMEOUT = 1_000_000_000;	// give up waiting for an echo after this (ns)
+
+	private Consumer<Command> send;										// actually sends a move to the server
+	private LinkedHashMap<Integer, Command> pending = new LinkedHashMap<>();	// latest unsent move per shape ID
+	private HashMap<Integer, Command> inFlight = new HashMap<>();		// last move sent per shape ID, until it's echoed
+	private HashMap<Integer, Long> sentAt = new HashMap<>();				// when each of those was sent (ns)
+	private long lastFlush = 0;											// when we last sent (ns)
+	private double rtt = 20_000_000;									// smoothed round-trip time (ns)
+	private double frameInterval = 16_000_000;							// smoothed time between repaints (ns)
+	private long lastFrame = 0;											// when we last repainted (ns)
+
+	public MoveThrottle(Consumer<Command> send) {
+		super("move-throttle");
+		this.send = send;
+		setDaemon(true);
+	}
+
+	/**
+	 * Queues a move, replacing any move of the same shape that hasn't gone out yet
+	 */
+	public synchronized void offer(Command move) {
+		pending.put(move.getShapeID(), move);
+		notifyAll();
+	}
+
+	/**
+	 * Sends every pending move right now, e.g. the final position when a drag ends
+	 */
+	public synchronized void flush() {
+		long now = System.nanoTime();
+		List<Command> moves = new ArrayList<>(pending.values());
+		pending.clear();
+		for (Command move : moves) {
+			inFlight.put(move.getShapeID(), move);
+			sentAt.put(move.getShapeID(), now);
+			send.accept(move);
+		}
+		lastFlush = now;
+	}
+
+	/**
+	 * Notes a move broadcast by the server; if it's the echo of our latest move of that shape, it gives us a round-trip time.
+	 * @return whether the editor should apply it -- not if it's an older position of a shape we're still moving ourselves
+	 */
+	public synchronized boolean received(Command move) {
+		int shapeID = move.getShapeID();
+		Command mine = inFlight.get(shapeID);
+		if (mine == null) return !pending.containsKey(shapeID);
+		long now = System.nanoTime();
+		long sent = sentAt.get(shapeID);
+		if (mine.getX() == move.getX() && mine.getY() == move.getY()) {
+			rtt = 0.875 * rtt + 0.125 * (now - sent);
+		}
+		else if (now - sent < ECHO_TIMEOUT) {
+			return false;
+		}
+		inFlight.remove(shapeID);
+		sentAt.remove(shapeID);
+		return !pending.containsKey(shapeID);
+	}
+
+	/**
+	 * Notes that the editor just repainted, to keep track of the local frame rate
+	 */
+	public synchronized void frameDrawn() {
+		long now = System.nanoTime();
+		if (lastFrame != 0 && now - lastFrame < MAX_INTERVAL) {
+			frameInterval = 0.875 * frameInterval + 0.125 * (now - lastFrame);
+		}
+		lastFrame = now;
+	}
+
+	/**
+	 * @return how long to wait between sends: no faster than we repaint, nor than half a round trip
+	 */
+	public synchronized long getInterval() {
+		long interval = (long) Math.max(frameInterval, rtt / 2);
+		return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+	}
+
+	/**
+	 * Sends pending moves once per interval
+	 */
+	public void run() {
+		try {
+			while (true) {
+				long wait;
+				synchronized (this) {
+					while (pending.isEmpty()) {
+						wait();
+					}
+					wait = lastFlush + getInterval() - System.nanoTime();
+					if (wait <= 0) {
+						flush();
+						continue;
+					}
+				}
+				Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+			}
+		}
+		catch (InterruptedException e) {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,412 @@
+import java.awt.Color;
+import java.awt.Point;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Durable, append-only log of the changes the server has broadcast, so the sketch survives a restart.
+ * Each record is the change's BinaryProtocol frame (sequence number included), exactly as it went out.
+ *
+ * Appending only hands the already-encoded message to a LogWriter (one thread shared by every room on a shard), so
+ * the sequencer and broadcast don't wait on the disk, unless it falls so far behind that capacity changes are waiting:
+ * then appending waits for it to catch up, holding up the room rather than piling up changes until the server runs out
+ * of memory. The writer writes whatever has piled up since the log's last write in one go (group commit), and
+ * forces it to disk according to the FsyncPolicy. The log is split into segment files, each named by the sequence
+ * number right after the last change in the one before it (its own first change, unless moves coalesced away left a
+ * gap), so old segments can be dropped as a whole as soon as everything in them is checkpointed.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class OpLog {
+	/**
+	 * When to force what's been written to disk
+	 */
+	public enum FsyncPolicy {
+		ALWAYS,		// after every group commit; nothing broadcast is lost in a crash, once the commit is done
+		INTERVAL,	// at most once per fsyncMillis; a crash can lose that long's worth
+		NEVER		// whenever the operating system gets to it
+	}
+
+	private Path dir;								// where the segments live
+	private FsyncPolicy policy;						// when to force to disk
+	private long fsyncNanos;						// for INTERVAL, how long between forces
+	private long segmentBytes;						// start a new segment once the current one is this big
+	private int capacity;							// most changes left waiting for the disk before append waits too
+	private LogWriter writer;						// the thread that writes for us (and other logs)
+	private FileChannel segment;					// segment being appended to
+	private ArrayList<ServerMessage> pending = new ArrayList<>();	// appended but not yet written, oldest first
+	private boolean closed = false;					// whether close() has been called
+	private boolean done = false;					// whether the writer is done with us, after close() or failing
+	private boolean failed = false;					// whether writing failed, so nothing more will be logged
+	private boolean setAside = false;				// whether replay set aside changes it couldn't replay
+	private long lastForce = System.nanoTime();		// when we last forced to disk
+	private boolean unforced = false;				// whether anything's been written since then
+	private long rollAfter = Long.MAX_VALUE;		// start a new segment with the first change after this one
+	private long lastWritten = 0;					// sequence number of the last change written, which the next segment follows
+	private long lastStallReport;					// when append last said it was waiting for the disk
+	private long ops = 0, bytes = 0, commits = 0, forces = 0, stalls = 0;	// for stats (stalls: times append waited)
+
+	/**
+	 * Opens (creating if need be) the log in dir; call replay before appending
+	 * @param fsyncMillis for FsyncPolicy.INTERVAL, how long between forces
+	 * @param segmentBytes how big a segment gets before the next one starts
+	 * @param capacity how many changes can wait to be written before append waits for the disk to catch up
+	 * @param writer thread to do the writing
+	 */
+	public OpLog(Path dir, FsyncPolicy policy, int fsyncMillis, long segmentBytes, int capacity, LogWriter writer)
+			throws IOException {
+		this.dir = dir;
+		this.writer = writer;
+		this.policy = policy;
+		this.fsyncNanos = fsyncMillis * 1_000_000L;
+		this.segmentBytes = segmentBytes;
+		this.capacity = capacity;
+		Files.createDirectories(dir);
+	}
+
+	/**
+	 * @return the segment files, oldest first
+	 */
+	public List<Path> segments() throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (var files = Files.list(dir)) {
+			files.filter(f -> f.getFileName().toString().matches("ops-\\d+\\.log")).forEach(segments::add);
+		}
+		segments.sort((a, b) -> Long.compare(firstSeq(a), firstSeq(b)));
+		return segments;
+	}
+
+	private static long firstSeq(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(4, name.length() - 4));
+	}
+
+	/**
+	 * Rebuilds the sketch from every change in the log after the given sequence number, cutting off any
+	 * partly written change at the end (from a crash), and gets ready to append after the last one.
+	 * A change that's all there but can't be read or applied (or a garbled one before the last segment's end) stops
+	 * the replay there: the rest of the log is set aside (see setAside) and appending carries on after the last good one.
+	 * @param after sequence number the sketch is already up to, e.g. 0 for an empty sketch
+	 * @return sequence number of the last change, or after if there are none
+	 */
+	public long replay(Sketch sketch, long after) throws IOException {
+		long seq = after;
+		Path last = null;
+		long lastGood = 0;
+		List<Path> segments = segments();
+		for (int i = 0; i < segments.size() && !setAside; i++) {
+			Path path = segments.get(i);
+			if (i + 1 < segments.size() && firstSeq(segments.get(i + 1)) <= after + 1) {
+				continue;		// all already in the sketch (e.g. from a checkpoint)
+			}
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				boolean garbled = false;		// whether we stopped at a change that makes no sense
+				int length;
+				while ((length = frameLength(mapped)) > 0) {
+					int start = mapped.position();
+					BinaryProtocol.readVarint(mapped);		// the length we already know
+					ByteBuffer body = mapped.slice(mapped.position(), length);
+					try {
+						Command cmd = BinaryProtocol.decode(body);
+						if (cmd.getSeq() > seq) {
+							apply(cmd, sketch);
+							seq = cmd.getSeq();
+						}
+					}
+					catch (IOException | RuntimeException e) {
+						System.err.println("log: can't replay the change after " + seq + " in " + path.getFileName() + ": " + e);
+						mapped.position(start);
+						garbled = true;
+						break;
+					}
+					mapped.position(mapped.position() + length);
+				}
+				last = path;
+				lastGood = mapped.position();
+				if (garbled || lastGood < channel.size() && i + 1 < segments.size()) {
+					setAside(segments, i, seq);
+				}
+			}
+		}
+		if (last != null) {
+			segment = FileChannel.open(last, StandardOpenOption.WRITE);
+			if (segment.size() > lastGood && !setAside) {
+				System.out.println("log: cutting off " + (segment.size() - lastGood) + " bytes of an unfinished change");
+				segment.truncate(lastGood);
+			}
+			else if (segment.size() > lastGood) {
+				segment.truncate(lastGood);
+			}
+			segment.position(lastGood);
+		}
+		else {
+			segment = newSegment(seq + 1);
+		}
+		lastWritten = seq;
+		return seq;
+	}
+
+	/**
+	 * Keeps a copy of the segment replay had to stop in, and moves every later one out of the way, all as .bad files:
+	 * never replayed again (so nothing's replayed past a gap), but there for someone to look at
+	 * @param from index in segments of the one replay stopped in
+	 * @param seq sequence number of the last change replayed
+	 */
+	private void setAside(List<Path> segments, int from, long seq) throws IOException {
+		System.err.println("log: setting aside everything after change " + seq + " as .bad files");
+		Path path = segments.get(from);
+		Files.copy(path, badName(path), StandardCopyOption.REPLACE_EXISTING);
+		for (int i = from + 1; i < segments.size(); i++) {
+			Files.move(segments.get(i), badName(segments.get(i)), StandardCopyOption.REPLACE_EXISTING);
+		}
+		setAside = true;
+	}
+
+	private static Path badName(Path segment) {
+		return segment.resolveSibling(segment.getFileName() + ".bad");
+	}
+
+	/**
+	 * @return whether replay had to set aside part of the log, so the sketch should be checkpointed right away
+	 * (nothing after the set-aside part will ever be replayed)
+	 */
+	public boolean hasSetAside() {
+		return setAside;
+	}
+
+	/**
+	 * @return the length of the next whole frame, or -1 if there isn't one (the end, or a torn or garbled write)
+	 */
+	private static int frameLength(ByteBuffer buf) {
+		try {
+			return BinaryProtocol.completeFrame(buf);
+		}
+		catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Applies a change as broadcast (with the server's shape IDs) to the sketch
+	 */
+	static void apply(Command cmd, Sketch sketch) {
+		int shapeID = cmd.getShapeID();
+		switch (cmd.getType()) {
+			case Command.SHAPE -> {
+				sketch.reserveID(shapeID);
+				sketch.addShape(shapeID, cmd.getShape());
+			}
+			case Command.STROKE_BEGIN -> {
+				sketch.reserveID(shapeID);
+				sketch.addShape(shapeID, new Polyline(new Point(cmd.getX(), cmd.getY()), new Color(cmd.getRGB())));
+			}
+			case Command.POINTS -> sketch.appendPoints(shapeID, cmd.getPoints());
+			case Command.DELETE -> sketch.deleteShape(shapeID);
+			case Command.MOVE -> sketch.moveShapeTo(shapeID, cmd.getX(), cmd.getY());
+			case Command.RECOLOR -> sketch.recolorShape(shapeID, new Color(cmd.getRGB()));
+		}
+	}
+
+	private FileChannel newSegment(long firstSeq) throws IOException {
+		Path path = dir.resolve("ops-" + firstSeq + ".log");
+		return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Queues a broadcast change to be logged; only waits on the disk if capacity changes are already waiting for it
+	 * @return false if the log can't write any more (see run), in which case the change is dropped
+	 */
+	public synchronized boolean append(ServerMessage op) {
+		if (pending.size() >= capacity && !failed) {
+			if (stalls++ == 0 || System.nanoTime() - lastStallReport >= 1_000_000_000L) {		// at most once a second
+				System.err.println("log: " + pending.size() + " changes waiting on the disk; holding up the room until it"
+						+ " catches up (" + stalls + " times so far)");
+				lastStallReport = System.nanoTime();
+			}
+			while (pending.size() >= capacity && !failed && !closed) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		if (failed) return false;
+		pending.add(op);
+		if (pending.size() == 1) writer.ready(this);
+		return true;
+	}
+
+	/**
+	 * Starts a new segment with the first change after seq, so the ones up to it can be deleted together
+	 */
+	public synchronized void rollAfter(long seq) {
+		rollAfter = seq;
+	}
+
+	/**
+	 * Deletes the segments holding nothing after seq (e.g. once a checkpoint has it all); never the one being written
+	 */
+	public void compact(long seq) throws IOException {
+		List<Path> segments = segments();
+		for (int i = 0; i + 1 < segments.size(); i++) {
+			if (firstSeq(segments.get(i + 1)) > seq + 1) break;
+			Files.deleteIfExists(segments.get(i));
+		}
+	}
+
+	/**
+	 * Has everything still pending written and forced to disk, and waits until it is; nothing's logged after this
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (!done) writer.ready(this);
+		while (!done) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Commits whatever has piled up since last time, and forces it if it's time to; called only by the writer
+	 * @param buffer where to gather the commit to be written
+	 */
+	void service(ByteBuffer buffer) {
+		List<ServerMessage> batch;
+		boolean last;
+		long roll;
+		synchronized (this) {
+			if (done) return;
+			batch = pending;
+			pending = new ArrayList<>();
+			if (batch.size() >= capacity) notifyAll();		// append may be waiting for room
+			last = closed;
+			roll = rollAfter;
+		}
+		try {
+			commit(batch, roll, buffer);
+			if (last) {
+				if (unforced) force();
+				if (segment != null) segment.close();		// (null if closed before replay got that far)
+				synchronized (this) {
+					done = true;
+					notifyAll();
+				}
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			System.err.println("log: can't write any more changes to " + dir);
+			e.printStackTrace();
+			buffer.clear();
+			unforced = false;
+			try {
+				if (segment != null) segment.close();
+			}
+			catch (IOException e2) {
+				// already given up on it
+			}
+			synchronized (this) {
+				// nobody's going to write these, so don't let them (and everything after) pile up
+				failed = true;
+				done = true;
+				pending = new ArrayList<>();
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return when what's been written has to be forced to disk (ns), or Long.MAX_VALUE if nothing has to be;
+	 * called only by the writer
+	 */
+	long forceDue() {
+		return unforced && policy == FsyncPolicy.INTERVAL ? lastForce + fsyncNanos : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Writes the batch in as few writes as it takes, then forces it if the policy says to
+	 */
+	private void commit(List<ServerMessage> batch, long roll, ByteBuffer buffer) throws IOException {
+		if (!batch.isEmpty()) {
+			for (ServerMessage op : batch) {
+				if (op.getSeq() > roll) {
+					flushBuffer(buffer);
+					roll(lastWritten + 1);
+					roll = Long.MAX_VALUE;
+					synchronized (this) {
+						if (rollAfter < op.getSeq()) rollAfter = Long.MAX_VALUE;		// unless asked again since
+					}
+				}
+				ByteBuffer frame = op.bytes(true);
+				if (frame.remaining() > buffer.remaining()) flushBuffer(buffer);
+				if (frame.remaining() > buffer.capacity()) {
+					write(frame);
+				}
+				else {
+					buffer.put(frame);
+				}
+				lastWritten = op.getSeq();
+			}
+			flushBuffer(buffer);
+			ops += batch.size();
+			commits++;
+			unforced = true;
+			if (segment.position() >= segmentBytes) {
+				// start the next segment with the change after the last one here
+				roll(lastWritten + 1);
+			}
+		}
+		if (unforced && (policy == FsyncPolicy.ALWAYS
+				|| policy == FsyncPolicy.INTERVAL && System.nanoTime() - lastForce >= fsyncNanos)) {
+			force();
+		}
+	}
+
+	private void roll(long firstSeq) throws IOException {
+		force();
+		segment.close();
+		segment = newSegment(firstSeq);
+	}
+
+	private void flushBuffer(ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		write(buffer);
+		buffer.clear();
+	}
+
+	private void write(ByteBuffer buf) throws IOException {
+		bytes += buf.remaining();
+		while (buf.hasRemaining()) {
+			segment.write(buf);
+		}
+	}
+
+	private void force() throws IOException {
+		segment.force(false);
+		lastForce = System.nanoTime();
+		unforced = false;
+		forces++;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return (failed ? "FAILED after logging " : "logged ") + ops + " ops (" + bytes + " bytes) in " + commits + " commits, "
+				+ forces + " fsyncs, " + stalls + " waits for the disk";
+	}
+}
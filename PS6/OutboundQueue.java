@@ -0,0 +1,135 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Bounded queue of messages waiting to go out to one client, so a slow client only ever holds up itself.
+ * Broadcasting just offers to each client's queue; the client's own writer drains it.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class OutboundQueue {
+	/**
+	 * What to do when the client isn't keeping up and its queue is full
+	 */
+	public enum OverflowPolicy {
+		DROP_STALE_MOVES,	// drop queued moves that a later move of the same shape supersedes; disconnect if that's not enough
+		DISCONNECT			// give up on the client right away and tell it to resync
+	}
+
+	// last message to a client we've given up on, see command_message_key.txt
+	private static final ServerMessage RESYNC_MESSAGE = new ServerMessage(Command.of(Command.RESYNC, -1));
+
+	private ArrayDeque<ServerMessage> queue;	// messages not yet handed to the writer, oldest first
+	private int capacity;						// most messages we'll hold
+	private OverflowPolicy policy;				// what to do when full
+	private boolean closed = false;				// whether we've given up on the client
+	private int highWaterMark = 0;				// deepest the queue has been
+	private long dropped = 0;					// stale moves dropped to make room
+
+	public OutboundQueue(int capacity, OverflowPolicy policy) {
+		this.capacity = capacity;
+		this.policy = policy;
+		queue = new ArrayDeque<>();
+	}
+
+	/**
+	 * Queues a message for the client without ever blocking.
+	 * @return false if the client has been (or just now was) given up on
+	 */
+	public synchronized boolean offer(ServerMessage msg) {
+		if (closed) return false;
+		if (queue.size() >= capacity && (policy == OverflowPolicy.DISCONNECT || !dropStaleMoves(msg))) {
+			// can't keep up: throw away what's queued and leave only the resync notice
+			dropped += queue.size();
+			queue.clear();
+			queue.add(RESYNC_MESSAGE);
+			closed = true;
+			notifyAll();
+			return false;
+		}
+		queue.add(msg);
+		highWaterMark = Math.max(highWaterMark, queue.size());
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Removes every queued move that's superseded by a later move (or by msg) of the same shape.
+	 * @return whether that made room
+	 */
+	private boolean dropStaleMoves(ServerMessage msg) {
+		HashSet<Integer> movedLater = new HashSet<>();
+		if (msg.getMovedShapeID() != -1) movedLater.add(msg.getMovedShapeID());
+		Iterator<ServerMessage> newestFirst = queue.descendingIterator();
+		while (newestFirst.hasNext()) {
+			int shapeID = newestFirst.next().getMovedShapeID();
+			if (shapeID != -1 && !movedLater.add(shapeID)) {
+				newestFirst.remove();
+				dropped++;
+			}
+		}
+		return queue.size() < capacity;
+	}
+
+	/**
+	 * Waits until there's something to send, then takes everything queued.
+	 * @return the messages, oldest first; empty once the queue is closed and drained
+	 */
+	public synchronized List<ServerMessage> takeAll() throws InterruptedException {
+		while (queue.isEmpty() && !closed) {
+			wait();
+		}
+		return pollAll();
+	}
+
+	/**
+	 * Takes everything queued without waiting
+	 * @return the messages, oldest first (possibly none)
+	 */
+	public synchronized List<ServerMessage> pollAll() {
+		List<ServerMessage> batch = new ArrayList<>(queue);
+		queue.clear();
+		return batch;
+	}
+
+	/**
+	 * Stops accepting messages, e.g. because the client left; wakes up a waiting writer
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return how many messages are waiting right now
+	 */
+	public synchronized int getDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the most messages that have ever been waiting at once
+	 */
+	public synchronized int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * @return how many messages were thrown away because the client fell behind
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "depth " + queue.size() + ", high-water mark " + highWaterMark + ", dropped " + dropped;
+	}
+}
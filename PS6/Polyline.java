@@ -1,34 +1,213 @@
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Point;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
 /**
  * A multi-segment Shape, with straight lines connecting "joint" points -- (x1,y1) to (x2,y2) to (x3,y3) ...
+ * The points are packed into one array, x1, y1, x2, y2 ..., rather than a Point object each, so a long stroke takes
+ * 8 bytes a point and walking it (to draw, move, test or send it) is a straight scan that makes no garbage.
+ * Points can keep arriving while a stroke streams in, so everything that walks them is synchronized; and a version of the
+ * stroke with more points (appended) can share the array with this one, each reading only its own first n points.
+ * A long one keeps a hierarchy of boxes over runs of its segments, so contains only checks the segments near the point.
  *
  * @author Selena Zhou, CS10 23W, PS6
  */
 public class Polyline implements Shape {
-	private List<Point> points;
+	private static final int MIN_TREE_POINTS = 64;		// with fewer points than this, contains just checks every segment
+
+	private int[] xy;				// the points, x1, y1, x2, y2 ..., with room to grow at the end
+	private int n;					// how many points
 	private Color color;
+	private int x1, y1, x2, y2;		// upper left and lower right of the points, kept up to date as they're added and moved
+	private SegmentTree tree;		// boxes over the segments, built the first time contains needs them (null until then)
+	private boolean borrowed;		// whether the start of xy is also an earlier version's, so moving the points must copy it first
+	private boolean extended;		// whether a later version (from appended) owns the rest of xy, so adding points must copy it first
 
 	public Polyline(Point p, Color color) {
-		points = new ArrayList<>();
-		points.add(p);
+		this(new int[] {p.x, p.y, 0, 0}, 1, color);
+	}
+
+	private Polyline(Color color) {
+		this.color = color;
+	}
+
+	/**
+	 * A polyline of the first n points in xy, which it keeps (so don't change it afterwards)
+	 */
+	public Polyline(int[] xy, int n, Color color) {
+		this.xy = xy;
+		this.n = n;
 		this.color = color;
+		x1 = x2 = xy[0];
+		y1 = y2 = xy[1];
+		for (int i = 2; i < 2*n; i += 2) {
+			bound(xy[i], xy[i+1]);
+		}
+	}
+
+	public synchronized void addPoint(Point p) {
+		append(p.x, p.y);
+	}
+
+	/**
+	 * Appends points given as x1, y1, x2, y2 ...
+	 * @param from index in xy of the first x to append
+	 */
+	public synchronized void addPoints(int[] xy, int from) {
+		for (int i = from; i+1 < xy.length; i += 2) {
+			append(xy[i], xy[i+1]);
+		}
+	}
+
+	/**
+	 * A longer version of this polyline, with the points given as x1, y1, x2, y2 ... added at the end, leaving this
+	 * one as it is. Shares this one's array when there's room at the end of it (and takes over its tree), so
+	 * streaming a stroke in batches costs only the points in each batch rather than a copy of the whole stroke.
+	 */
+	public synchronized Polyline appended(int[] more) {
+		Polyline longer = new Polyline(color);
+		if (!extended && 2*n + more.length <= xy.length) {
+			longer.xy = xy;
+			longer.borrowed = true;
+			extended = true;
+		}
+		else {
+			longer.xy = Arrays.copyOf(xy, Math.max(2 * xy.length, 2*n + more.length));
+		}
+		longer.n = n;
+		longer.x1 = x1; longer.y1 = y1; longer.x2 = x2; longer.y2 = y2;
+		longer.tree = tree;		// this one builds another if it's ever hit-tested again
+		tree = null;
+		longer.addPoints(more, 0);
+		return longer;
+	}
+
+	/**
+	 * Adds the point at the end, keeping the bounding box and the tree (if there is one) up to date
+	 */
+	private void append(int x, int y) {
+		if (extended || 2*n == xy.length) own(2 * xy.length);
+		xy[2*n] = x; xy[2*n+1] = y;
+		n++;
+		bound(x, y);
+		if (tree != null) tree.add(xy[2*n-4], xy[2*n-3], x, y);
+	}
+
+	/**
+	 * Gives this polyline an array of its own with room for capacity ints, so it can change its points in place
+	 */
+	private void own(int capacity) {
+		xy = Arrays.copyOf(xy, capacity);
+		borrowed = extended = false;
 	}
 
-	public void addPoint(Point p) {
-		points.add(p);
+	private void bound(int x, int y) {
+		x1 = Math.min(x1, x); y1 = Math.min(y1, y);
+		x2 = Math.max(x2, x); y2 = Math.max(y2, y);
+	}
+
+	/**
+	 * @return how many points there are
+	 */
+	public synchronized int size() {
+		return n;
+	}
+
+	/**
+	 * @return x coordinate of point i
+	 */
+	public synchronized int getX(int i) {
+		return xy[2*i];
+	}
+
+	/**
+	 * @return y coordinate of point i
+	 */
+	public synchronized int getY(int i) {
+		return xy[2*i+1];
 	}
 
 	@Override
-	public void moveBy(int dx, int dy) {
-		for (Point p: points) {
-			p.x += dx;
-			p.y += dy;
+	public int getX() {
+		return getX(0);
+	}
+
+	@Override
+	public int getY() {
+		return getY(0);
+	}
+
+	/**
+	 * Writes the points as in BinaryProtocol, straight from the array
+	 */
+	public synchronized void writePoints(ByteArrayOutputStream out) {
+		BinaryProtocol.writePoints(out, xy, 2*n);
+	}
+
+	/**
+	 * Drops the points that hardly change the stroke's shape, with Ramer-Douglas-Peucker: keeps the ends, then the
+	 * point farthest from the line between them if it's more than tolerance off it, and so on either side of that.
+	 * No point of this stroke ends up more than tolerance from the simplified one.
+	 * @param tolerance how far (in pixels) the simplified stroke may stray; 0 or less keeps every point
+	 * @return a new polyline with the points kept
+	 */
+	public synchronized Polyline simplified(double tolerance) {
+		if (tolerance <= 0 || n < 3) return (Polyline) copy();
+		double tolerance2 = tolerance * tolerance;
+		boolean[] keep = new boolean[n];
+		keep[0] = keep[n-1] = true;
+		int kept = 2;
+		int[] stack = new int[2*n];		// runs (first and last point) still to look inside; there are never more than n
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n-1;
+		while (top > 0) {
+			int last = stack[--top], first = stack[--top];
+			int farthest = -1;
+			double farthest2 = tolerance2;
+			for (int i = first+1; i < last; i++) {
+				double d2 = Segment.pointToSegmentDistance2(xy[2*i], xy[2*i+1], xy[2*first], xy[2*first+1], xy[2*last], xy[2*last+1]);
+				if (d2 > farthest2) {
+					farthest = i;
+					farthest2 = d2;
+				}
+			}
+			if (farthest != -1) {
+				keep[farthest] = true;
+				kept++;
+				stack[top++] = first;
+				stack[top++] = farthest;
+				stack[top++] = farthest;
+				stack[top++] = last;
+			}
 		}
+		int[] simple = new int[2*kept];
+		for (int i = 0, j = 0; i < n; i++) {
+			if (keep[i]) {
+				simple[j++] = xy[2*i];
+				simple[j++] = xy[2*i+1];
+			}
+		}
+		return new Polyline(simple, kept, color);
+	}
+
+	@Override
+	public synchronized void moveBy(int dx, int dy) {
+		if (borrowed || extended) own(xy.length);
+		for (int i = 0; i < 2*n; i += 2) {
+			xy[i] += dx;
+			xy[i+1] += dy;
+		}
+		x1 += dx; y1 += dy;
+		x2 += dx; y2 += dy;
+		if (tree != null) tree.shift(dx, dy);
+	}
+
+	@Override
+	public synchronized BoundingBox getBounds() {
+		return new BoundingBox(x1, y1, x2, y2).padded(TOLERANCE);
 	}
 
 	@Override
@@ -42,11 +221,41 @@ public class Polyline implements Shape {
 	}
 	
 	@Override
-	public boolean contains(int x, int y) {
-		for (int i = 0; i < points.size()-1; i++) {
-			Point p1 = points.get(i);
-			Point p2 = points.get(i+1);
-			if (Segment.pointToSegmentDistance(x, y, p1.x, p1.y, p2.x, p2.y) <= 10) {
+	public synchronized boolean contains(int x, int y) {
+		if (x < x1 - TOLERANCE || x > x2 + TOLERANCE || y < y1 - TOLERANCE || y > y2 + TOLERANCE) return false;
+		if (n < MIN_TREE_POINTS) return nearSegments(x, y, 0, n-1);
+		if (tree == null) {
+			tree = new SegmentTree();
+			for (int i = 0; i < 2*(n-1); i += 2) {
+				tree.add(xy[i], xy[i+1], xy[i+2], xy[i+3]);
+			}
+		}
+		return near(x, y, tree.depth-1, 0);
+	}
+
+	/**
+	 * Whether the point is near any segment under the box at that level and index of the tree,
+	 * looking inside only the boxes it's (within TOLERANCE) in
+	 */
+	private boolean near(int x, int y, int level, int box) {
+		if (!tree.near(level, box, x, y)) return false;
+		if (level == 0) {
+			int from = box * SegmentTree.LEAF;
+			return nearSegments(x, y, from, Math.min(from + SegmentTree.LEAF, tree.segments));
+		}
+		int end = Math.min((box+1) * SegmentTree.FANOUT, tree.sizes[level-1]);
+		for (int child = box * SegmentTree.FANOUT; child < end; child++) {
+			if (near(x, y, level-1, child)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the point is near any of the segments from point from to point to
+	 */
+	private boolean nearSegments(int x, int y, int from, int to) {
+		for (int i = 2*from; i < 2*to; i += 2) {
+			if (Segment.near(x, y, xy[i], xy[i+1], xy[i+2], xy[i+3])) {
 				return true;
 			}
 		}
@@ -54,22 +263,117 @@ public class Polyline implements Shape {
 	}
 
 	@Override
-	public void draw(Graphics g) {	//draw line between every two points in list
+	public synchronized void draw(Graphics g) {	//draw line between every two points in list
 		g.setColor(this.color);
-		for (int i = 0; i < points.size()-1; i++) {
-			Point p1 = points.get(i);
-			Point p2 = points.get(i+1);
-			g.drawLine(p1.x, p1.y, p2.x, p2.y);
+		for (int i = 0; i < 2*(n-1); i += 2) {
+			g.drawLine(xy[i], xy[i+1], xy[i+2], xy[i+3]);
 		}
 	}
 
 	@Override
-	public String toString() {
+	public synchronized Shape copy() {
+		Polyline copy = new Polyline(Arrays.copyOf(xy, 2*n), n, color);
+		if (tree != null) copy.tree = tree.copy();
+		return copy;
+	}
+
+	@Override
+	public synchronized String toString() {
 		StringBuilder str = new StringBuilder("freehand");
-		for (Point p: points) {
-			str.append(" ").append(p.x).append(" ").append(p.y);
+		for (int i = 0; i < 2*n; i += 2) {
+			str.append(" ").append(xy[i]).append(" ").append(xy[i+1]);
 		}
 		str.append(" ").append(this.color.getRGB());
 		return str.toString();
 	}
+
+	/**
+	 * Bounding boxes over a polyline's segments: each leaf box covers a run of LEAF segments, each box above it
+	 * covers FANOUT boxes below, up to a single box at the top. Segments are only ever added at the end, so adding
+	 * one just grows the boxes on the way up from its leaf. Boxes are x1, y1, x2, y2, four ints each.
+	 */
+	private static class SegmentTree {
+		static final int LEAF = 16;			// segments per leaf box
+		static final int FANOUT = 8;		// boxes under each box above the leaves
+
+		int[][] boxes = new int[4][];		// boxes on each level, leaves first
+		int[] sizes = new int[4];			// how many boxes on each level
+		int depth = 0;						// how many levels
+		int segments = 0;					// how many segments are covered
+
+		/**
+		 * Covers the next segment, from (ax,ay) to (bx,by)
+		 */
+		void add(int ax, int ay, int bx, int by) {
+			int box = segments++ / LEAF;
+			for (int level = 0; ; level++, box /= FANOUT) {
+				if (level == depth) addLevel();
+				include(level, box, Math.min(ax, bx), Math.min(ay, by), Math.max(ax, bx), Math.max(ay, by));
+				if (level == depth-1) {
+					if (sizes[level] == 1) return;
+					// the top just got a second box, so it needs a box above it covering the first one too
+					addLevel();
+					int[] first = boxes[level];
+					include(level+1, 0, first[0], first[1], first[2], first[3]);
+				}
+			}
+		}
+
+		private void addLevel() {
+			if (depth == boxes.length) {
+				boxes = Arrays.copyOf(boxes, 2 * depth);
+				sizes = Arrays.copyOf(sizes, 2 * depth);
+			}
+			boxes[depth] = new int[4 * 4];
+			sizes[depth] = 0;
+			depth++;
+		}
+
+		/**
+		 * Grows the box to cover the other box, or adds it if it's the next one on the level
+		 */
+		private void include(int level, int box, int x1, int y1, int x2, int y2) {
+			int[] b = boxes[level];
+			int i = 4 * box;
+			if (box == sizes[level]) {
+				if (i == b.length) b = boxes[level] = Arrays.copyOf(b, 2 * i);
+				b[i] = x1; b[i+1] = y1; b[i+2] = x2; b[i+3] = y2;
+				sizes[level]++;
+			}
+			else {
+				b[i] = Math.min(b[i], x1); b[i+1] = Math.min(b[i+1], y1);
+				b[i+2] = Math.max(b[i+2], x2); b[i+3] = Math.max(b[i+3], y2);
+			}
+		}
+
+		/**
+		 * Whether the point is within TOLERANCE of the box
+		 */
+		boolean near(int level, int box, int x, int y) {
+			int[] b = boxes[level];
+			int i = 4 * box;
+			return x >= b[i] - TOLERANCE && y >= b[i+1] - TOLERANCE && x <= b[i+2] + TOLERANCE && y <= b[i+3] + TOLERANCE;
+		}
+
+		void shift(int dx, int dy) {
+			for (int level = 0; level < depth; level++) {
+				int[] b = boxes[level];
+				for (int i = 0; i < 4 * sizes[level]; i += 4) {
+					b[i] += dx; b[i+1] += dy; b[i+2] += dx; b[i+3] += dy;
+				}
+			}
+		}
+
+		SegmentTree copy() {
+			SegmentTree copy = new SegmentTree();
+			copy.boxes = new int[boxes.length][];
+			for (int level = 0; level < depth; level++) {
+				copy.boxes[level] = boxes[level].clone();
+			}
+			copy.sizes = sizes.clone();
+			copy.depth = depth;
+			copy.segments = segments;
+			return copy;
+		}
+	}
 }
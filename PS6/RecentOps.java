@@ -0,0 +1,57 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded ring of the most recent changes the server broadcast, already encoded, so an editor that lost its
+ * connection can be sent just what it missed instead of the whole sketch. Changes go in in order of sequence number.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class RecentOps {
+	private ServerMessage[] ring;		// the changes, oldest at start
+	private int start = 0;				// index of the oldest change
+	private int count = 0;				// how many changes are in the ring
+	private long evictedUpTo = 0;		// sequence number of the newest change pushed out to make room, 0 if none
+
+	public RecentOps(int capacity) {
+		ring = new ServerMessage[capacity];
+	}
+
+	/**
+	 * Adds a change, pushing out the oldest one if the ring is full
+	 */
+	public void add(ServerMessage op) {
+		if (count == ring.length) {
+			evictedUpTo = ring[start].getSeq();
+			ring[start] = op;
+			start = (start + 1) % ring.length;
+		}
+		else {
+			ring[(start + count++) % ring.length] = op;
+		}
+	}
+
+	/**
+	 * @return every change after lastSeq, oldest first, or null if some of them have already been pushed out
+	 */
+	public List<ServerMessage> since(long lastSeq) {
+		if (lastSeq < evictedUpTo) return null;
+		// binary search for the first change after lastSeq
+		int lo = 0, hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ring[(start + mid) % ring.length].getSeq() <= lastSeq) lo = mid + 1;
+			else hi = mid;
+		}
+		List<ServerMessage> missed = new ArrayList<>(count - lo);
+		for (int i = lo; i < count; i++) {
+			missed.add(ring[(start + i) % ring.length]);
+		}
+		return missed;
+	}
+
+	@Override
+	public String toString() {
+		return "recent ops " + count + ", evicted up to " + evictedUpTo;
+	}
+}
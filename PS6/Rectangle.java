@@ -32,12 +32,46 @@ public class Rectangle implements Shape {
 		this.x2 = Math.max(x1, x2);
 		this.y2 = Math.max(y1, y2);
 	}
+	/**
+	 * @return coordinates of the corners, as in toString
+	 */
+	public int getX1() {
+		return x1;
+	}
+
+	public int getY1() {
+		return y1;
+	}
+
+	public int getX2() {
+		return x2;
+	}
+
+	public int getY2() {
+		return y2;
+	}
+
+	@Override
+	public int getX() {
+		return x1;
+	}
+
+	@Override
+	public int getY() {
+		return y1;
+	}
+
 	@Override
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
 	}
 
+	@Override
+	public BoundingBox getBounds() {
+		return new BoundingBox(x1, y1, x2, y2);
+	}
+
 	@Override
 	public Color getColor() {
 		return this.color;
@@ -59,6 +93,11 @@ public class Rectangle implements Shape {
 		g.fillRect(this.x1, this.y1, x2-x1, y2-y1);
 	}
 
+	@Override
+	public Shape copy() {
+		return new Rectangle(x1, y1, x2, y2, color);
+	}
+
 	public String toString() {
 		return "rectangle " +x1+" "+y1+" "+x2+" "+y2+" "+color.getRGB();
 	}
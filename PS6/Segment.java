@@ -44,12 +44,46 @@ public class Segment implements Shape {
 		this.x2 = x2; this.y2 = y2;
 	}
 	
+	/**
+	 * @return coordinates of the endpoints, as in toString
+	 */
+	public int getX1() {
+		return x1;
+	}
+
+	public int getY1() {
+		return y1;
+	}
+
+	public int getX2() {
+		return x2;
+	}
+
+	public int getY2() {
+		return y2;
+	}
+
+	@Override
+	public int getX() {
+		return x1;
+	}
+
+	@Override
+	public int getY() {
+		return y1;
+	}
+
 	@Override
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
 	}
 
+	@Override
+	public BoundingBox getBounds() {
+		return new BoundingBox(x1, y1, x2, y2).padded(TOLERANCE);
+	}
+
 	@Override
 	public Color getColor() {
 		return color;
@@ -62,7 +96,19 @@ public class Segment implements Shape {
 	
 	@Override
 	public boolean contains(int x, int y) {
-		return pointToSegmentDistance(x, y, x1, y1, x2, y2) <= 10;
+		return near(x, y, x1, y1, x2, y2);
+	}
+
+	/**
+	 * Whether the point (x,y) is within TOLERANCE of the segment (x1,y1)-(x2,y2), checking the segment's padded
+	 * bounding box first and then comparing squared distances, so no square root
+	 */
+	public static boolean near(int x, int y, int x1, int y1, int x2, int y2) {
+		if (x < Math.min(x1, x2) - TOLERANCE || x > Math.max(x1, x2) + TOLERANCE
+				|| y < Math.min(y1, y2) - TOLERANCE || y > Math.max(y1, y2) + TOLERANCE) {
+			return false;
+		}
+		return pointToSegmentDistance2(x, y, x1, y1, x2, y2) <= TOLERANCE * TOLERANCE;
 	}
 
 	/**
@@ -70,15 +116,22 @@ public class Segment implements Shape {
 	 * http://stackoverflow.com/questions/849211/shortest-distance-between-a-point-and-a-line-segment
 	 */
 	public static double pointToSegmentDistance(int x, int y, int x1, int y1, int x2, int y2) {
+		return Math.sqrt(pointToSegmentDistance2(x, y, x1, y1, x2, y2));
+	}
+
+	/**
+	 * The distance between a point (x,y) and a segment (x1,y1)-(x2,y2), squared; cheaper, to compare against a squared distance
+	 */
+	public static double pointToSegmentDistance2(int x, int y, int x1, int y1, int x2, int y2) {
 		double l2 = dist2(x1, y1, x2, y2);
-		if (l2 == 0) return Math.sqrt(dist2(x, y, x1, y1)); // segment is a point
+		if (l2 == 0) return dist2(x, y, x1, y1); // segment is a point
 		// Consider the line extending the segment, parameterized as <x1,y1> + t*(<x2,y2> - <x1,y1>).
 		// We find projection of point <x,y> onto the line. 
 		// It falls where t = [(<x,y>-<x1,y1>) . (<x2,y2>-<x1,y1>)] / |<x2,y2>-<x1,y1>|^2
-		double t = ((x-x1)*(x2-x1) + (y-y1)*(y2-y1)) / l2;
+		double t = ((double) (x-x1)*(x2-x1) + (double) (y-y1)*(y2-y1)) / l2;
 		// We clamp t from [0,1] to handle points outside the segment.
 		t = Math.max(0, Math.min(1, t));
-		return Math.sqrt(dist2(x, y, x1+t*(x2-x1), y1+t*(y2-y1)));
+		return dist2(x, y, x1+t*(x2-x1), y1+t*(y2-y1));
 	}
 
 	/**
@@ -94,6 +147,11 @@ public class Segment implements Shape {
 		g.drawLine(x1, y1, x2, y2);
 	}
 
+	@Override
+	public Shape copy() {
+		return new Segment(x1, y1, x2, y2, color);
+	}
+
 	@Override
 	public String toString() {
 		return "segment "+x1+" "+y1+" "+x2+" "+y2+" "+color.getRGB();
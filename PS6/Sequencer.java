@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The one thread that changes the server's Sketch. Communicators only parse what their clients send and hand it
+ * over here, through a lock-free queue that any number of threads can add to; this thread takes tasks off it
+ * one at a time, so every change (and every client joining) happens in a single total order.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class Sequencer extends Thread {
+	private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();	// waiting to run, oldest first
+	private volatile boolean idle = false;			// whether we're (about to be) parked, waiting for a task
+	private volatile long done = 0;					// how many tasks have run, for stats
+	private ArrayList<Runnable> tickTasks = new ArrayList<>();	// to run at the next tick (only on this thread)
+	private volatile boolean tickWanted = false;	// whether there are any, so a tick is worth waking up for
+
+	public Sequencer(String name) {
+		super(name);
+		setDaemon(true);
+	}
+
+	/**
+	 * Queues the task to run on the sequencer, after everything queued before it; never waits
+	 */
+	public void execute(Runnable task) {
+		tasks.offer(task);
+		if (idle) LockSupport.unpark(this);
+	}
+
+	/**
+	 * Has the task run at the next tick, once; called only on the sequencer
+	 */
+	public void atNextTick(Runnable task) {
+		tickTasks.add(task);
+		tickWanted = true;
+	}
+
+	/**
+	 * Queues whatever is waiting for the tick to run; a sequencer with nothing waiting isn't woken at all
+	 */
+	public void tick() {
+		if (!tickWanted) return;
+		tickWanted = false;
+		execute(this::runTickTasks);
+	}
+
+	private void runTickTasks() {
+		ArrayList<Runnable> due = tickTasks;
+		tickTasks = new ArrayList<>();
+		for (Runnable task : due) {
+			try {
+				task.run();
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Runs tasks in order, parking when there are none
+	 */
+	public void run() {
+		while (true) {
+			Runnable task = tasks.poll();
+			if (task == null) {
+				idle = true;
+				// a task may have been queued just before we said we were idle, so look once more before parking
+				if (tasks.isEmpty()) LockSupport.park(this);
+				idle = false;
+				continue;
+			}
+			try {
+				task.run();
+			}
+			catch (RuntimeException e) {
+				// a command that doesn't make sense shouldn't stop everyone else's
+				e.printStackTrace();
+			}
+			done++;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "sequenced " + done;
+	}
+}
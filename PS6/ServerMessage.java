@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * One message from the server to clients, encoded once into read-only direct buffers
+ * that every recipient shares (each write just takes its own duplicate() of one).
+ * A command is encoded both as a text line and as a binary frame, for the two kinds of client.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class ServerMessage {
+	private String text;				// the message, as in command_message_key.txt
+	private ByteBuffer textBytes;		// the message and its newline, ready to write; never read or written directly
+	private ByteBuffer binaryBytes;		// the message as a BinaryProtocol frame; same as textBytes if it's text-only
+	private int movedShapeID = -1;		// the shape if this is a move, else -1
+	private long seq = 0;				// the change's sequence number, 0 if it isn't one
+	private ServerMessage legacy = this;	// what editors that never sent a handshake get instead (null for nothing)
+	private volatile Command unencoded;		// a snapshot not encoded yet
+	private boolean unencodedBinary;		// which encoding it's for
+
+	/**
+	 * A text-only message, like the handshake reply
+	 */
+	public ServerMessage(String text) {
+		this.text = text;
+		textBytes = encode((text + "\n").getBytes(StandardCharsets.UTF_8));
+		binaryBytes = textBytes;
+	}
+
+	/**
+	 * A command, in both encodings
+	 */
+	public ServerMessage(Command cmd) {
+		this(cmd.toString());
+		binaryBytes = encode(BinaryProtocol.encode(cmd));
+		seq = cmd.getSeq();
+		if (cmd.getType() == Command.MOVE) {
+			movedShapeID = cmd.getShapeID();
+		}
+		else if (cmd.getType() == Command.STROKE_BEGIN || cmd.getType() == Command.POINTS) {
+			legacy = null;
+		}
+		else if (cmd.getType() == Command.STROKE_END) {
+			// older editors don't know about streamed strokes, so they get the whole thing once it's done
+			legacy = cmd.getShape() != null ? new ServerMessage(Command.shape(cmd.getShapeID(), cmd.getShape())) : null;
+		}
+	}
+
+	/**
+	 * A snapshot of the whole sketch for one client that just joined, in just the encoding it speaks.
+	 * Binary clients get it compressed, in frames of bounded size; text clients get every "s" line in one buffer.
+	 * It's only encoded once it's about to be written, so queueing it is quick.
+	 */
+	public static ServerMessage snapshot(Command snapshot, boolean binary) {
+		ServerMessage msg = new ServerMessage("z (" + snapshot.getShapes().size() + " shapes, as of " + snapshot.getSeq() + ")");
+		msg.unencoded = snapshot;
+		msg.unencodedBinary = binary;
+		return msg;
+	}
+
+	private synchronized void encodeSnapshot() {
+		if (unencoded == null) return;
+		byte[] encoded = unencodedBinary ? BinaryProtocol.encode(unencoded)
+				: (unencoded + "\n").getBytes(StandardCharsets.UTF_8);
+		textBytes = binaryBytes = encode(encoded);
+		unencoded = null;
+	}
+
+	private static ByteBuffer encode(byte[] encoded) {
+		ByteBuffer buf = ByteBuffer.allocateDirect(encoded.length);
+		buf.put(encoded).flip();
+		return buf.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return a fresh view of the encoded message, with its own position, for one recipient to write
+	 * @param binary whether the recipient negotiated the binary protocol
+	 */
+	public ByteBuffer bytes(boolean binary) {
+		if (unencoded != null) encodeSnapshot();
+		return (binary ? binaryBytes : textBytes).duplicate();
+	}
+
+	/**
+	 * @return the message for an editor that never sent a handshake, or null if it shouldn't get one
+	 */
+	public ServerMessage legacy() {
+		return legacy;
+	}
+
+	/**
+	 * @return the change's sequence number, 0 if it isn't one
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * @return the shape ID if this is a move, else -1
+	 */
+	public int getMovedShapeID() {
+		return movedShapeID;
+	}
+
+	/**
+	 * Gathers the batch into one array of buffers, so it can go out in a single write
+	 */
+	public static ByteBuffer[] gather(List<ServerMessage> batch, boolean binary) {
+		ByteBuffer[] bufs = new ByteBuffer[batch.size()];
+		for (int i = 0; i < bufs.length; i++) {
+			bufs[i] = batch.get(i).bytes(binary);
+		}
+		return bufs;
+	}
+
+	/**
+	 * Writes the whole batch to a blocking channel, as few gathering writes as it takes
+	 */
+	public static void writeAll(GatheringByteChannel channel, List<ServerMessage> batch, boolean binary) throws IOException {
+		ByteBuffer[] bufs = gather(batch, binary);
+		int first = 0;
+		while (first < bufs.length) {
+			channel.write(bufs, first, bufs.length - first);
+			while (first < bufs.length && !bufs[first].hasRemaining()) first++;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
@@ -9,6 +9,11 @@ import java.awt.Graphics;
  */
 
 public interface Shape {
+	/**
+	 * How far (in pixels) a point can be off a line, segment or freehand, and still count as on it
+	 */
+	public static final int TOLERANCE = 10;
+
 	/**
 	 * Moves the shape by dx in the x coordinate and dy in the y coordinate
 	 */
@@ -19,6 +24,22 @@ public interface Shape {
 	 */
 	public boolean contains(int x, int y);
 
+	/**
+	 * @return where the shape is: its first corner, endpoint or point, as in toString; what moving it to (x, y) puts at (x, y)
+	 */
+	public int getX();
+
+	/**
+	 * @return y of where the shape is, as for getX
+	 */
+	public int getY();
+
+	/**
+	 * @return the smallest box holding every point the shape contains (so for lines, padded by TOLERANCE);
+	 * anything outside it can be skipped without the exact test
+	 */
+	public BoundingBox getBounds();
+
 	/**
 	 * @return The shape's color
 	 */
@@ -33,4 +54,9 @@ public interface Shape {
 	 * Draws the shape
 	 */
 	public void draw(Graphics g);
+
+	/**
+	 * @return a separate shape just like this one, to change without changing this one
+	 */
+	public Shape copy();
 }
@@ -1,18 +1,19 @@
 import java.awt.*;
 import java.util.List;
-import java.util.TreeMap;
 
 /**
  * Sketch class to hold list of shapes and IDs.
+ * The shapes live in an immutable, versioned SketchSnapshot that each change replaces, so readers
+ * (drawing, a client joining) never lock and never see a change half made; only changes take turns.
  * @author Selena Zhou, CS10 23W, PS6
  */
 public class Sketch {
-
-    private TreeMap<Integer, Shape> IDtoShapeMap;           // Map shapes to their IDs
+    private volatile SketchSnapshot image;                  // Map shapes to their IDs, as of the latest change
     private int currentID;                                  // To create new unique ID
+    private SpatialGrid index;                              // Where the shapes are, for mouseInShape; built the first time it's needed (so never on the server)
 
     public Sketch() {
-        IDtoShapeMap = new TreeMap<>();
+        image = SketchSnapshot.EMPTY;
         currentID = 0;
     }
 
@@ -24,13 +25,48 @@ public class Sketch {
         return currentID++;
     }
 
+    /**
+     * @return the ID getAvailID would hand out next, without using it up
+     */
+    public synchronized int peekAvailID() {
+        return currentID;
+    }
+
+    /**
+     * Makes sure getAvailID never hands out the given ID, e.g. one already used before a restart.
+     * @param ID ID that's taken
+     */
+    public synchronized void reserveID(int ID) {
+        currentID = Math.max(currentID, ID + 1);
+    }
+
     /**
      * Adds a shape to the sketch/map of shapes.
+     * The sketch keeps the shape as it is now, so don't change it afterwards.
      * @param ID ID of the new shape
      * @param shape shape
+     * @return version of the sketch with the shape in it
+     */
+    public synchronized long addShape(int ID, Shape shape) {
+        image = image.with(ID, shape);
+        reindex(ID, shape);
+        return image.getVersion();
+    }
+
+    /**
+     * Replaces everything with a snapshot, e.g. one from the server.
+     * @param snapshot the shapes to have from now on
+     */
+    public synchronized void load(SketchSnapshot snapshot) {
+        image = snapshot.atVersion(image.getVersion() + 1);
+        index = null;
+    }
+
+    /**
+     * @return the whole sketch as of now; it won't change, so it can be read at leisure
      */
-    public void addShape(int ID, Shape shape) {
-        IDtoShapeMap.put(ID, shape);
+    public SketchSnapshot snapshot() {
+        return image;
     }
 
     /**
@@ -38,19 +74,45 @@ public class Sketch {
      * @param ID ID of the shape.
      * @return Shape under ID.
      */
-    public synchronized Shape getShape(int ID) {
-        if (IDtoShapeMap.containsKey(ID)) {
-            return IDtoShapeMap.get(ID);
-        }
-        return null;
+    public Shape getShape(int ID) {
+        return image.getShape(ID);
     }
 
     /**
      * Removes shape from the sketch.
      * @param ID ID of the shape.
+     * @return version of the sketch without the shape
+     */
+    public synchronized long deleteShape(int ID) {
+        if (image.getShape(ID) != null) {
+            image = image.with(ID, null);
+            reindex(ID, null);
+        }
+        return image.getVersion();
+    }
+
+    /**
+     * Appends points to a freehand shape that's still being drawn.
+     * @param ID ID of the shape
+     * @param xy x1, y1, x2, y2 ... to append
+     * @return version of the sketch with the points added
      */
-    public synchronized void deleteShape(int ID) {
-        IDtoShapeMap.remove(ID);
+    public synchronized long appendPoints(int ID, int[] xy) {
+        Shape shape = image.getShape(ID);
+        if (shape instanceof Polyline) {
+            Polyline longer = ((Polyline) shape).appended(xy);      // shares the points so far, rather than copying them
+            image = image.with(ID, longer);
+            reindex(ID, longer);
+        }
+        return image.getVersion();
+    }
+
+    /**
+     * Removes every shape, e.g. before being sent a fresh copy of the sketch.
+     */
+    public synchronized void clear() {
+        image = SketchSnapshot.EMPTY.atVersion(image.getVersion() + 1);
+        index = null;
     }
 
     /**
@@ -58,33 +120,71 @@ public class Sketch {
      * @param ID ID of the shape
      * @param x target x-coordinate
      * @param y target y-coordinate
+     * @return version of the sketch with the shape moved
      */
-    public void moveShapeTo(int ID, int x, int y) {
-        Shape shape = IDtoShapeMap.get(ID);
-        String[] shapeInfo = shape.toString().split(" ");
-        int dx = x - Integer.parseInt(shapeInfo[1]);            // creates dx and dy by subtracting the initial position from the target position
-        int dy = y - Integer.parseInt(shapeInfo[2]);
-        shape.moveBy(dx, dy);
+    public synchronized long moveShapeTo(int ID, int x, int y) {
+        Shape shape = image.getShape(ID);
+        if (shape == null) return image.getVersion();           // e.g. already deleted by someone else
+        int dx = x - shape.getX(), dy = y - shape.getY();       // creates dx and dy by subtracting the initial position from the target position
+        Shape moved = shape.copy();
+        moved.moveBy(dx, dy);
+        image = image.with(ID, moved);
+        reindex(ID, moved);
+        return image.getVersion();
     }
 
     /**
      * Recolors a shape.
      * @param ID ID of the shape to recolor
      * @param color color to recolor to
+     * @return version of the sketch with the shape recolored
+     */
+    public synchronized long recolorShape(int ID, Color color) {
+        Shape shape = image.getShape(ID);
+        if (shape != null) {
+            Shape recolored = shape.copy();
+            recolored.setColor(color);
+            image = image.with(ID, recolored);
+        }
+        return image.getVersion();
+    }
+
+    /**
+     * Keeps the index up to date with a shape that was just added, changed or (if null) deleted.
+     */
+    private void reindex(int ID, Shape shape) {
+        if (index == null) return;
+        if (shape == null) index.remove(ID);
+        else index.put(ID, shape.getBounds());
+    }
+
+    /**
+     * Builds the index, if it hasn't been already.
      */
-    public void recolorShape(int ID, Color color) {
-        IDtoShapeMap.get(ID).setColor(color);
+    private void buildIndex() {
+        if (index == null) {
+            index = new SpatialGrid();
+            image.forEach((ID, shape) -> reindex(ID, shape));
+        }
     }
 
     /**
      * Returns shape ID of the shape the user is clicking on.
+     * Only the shapes whose boxes the point is in get the exact test, newest first.
      * @param p point where user's mouse clicked.
      * @return shape ID if p resides on a shape, -1 if not.
      */
     public int mouseInShape(Point p) {
-        for (int ID: IDtoShapeMap.descendingKeySet()) {
-            if (IDtoShapeMap.get(ID).contains(p.x, p.y)) {
-                 return ID;
+        SketchSnapshot shapes;
+        int[] candidates;
+        synchronized (this) {
+            buildIndex();
+            shapes = image;
+            candidates = index.candidates(p.x, p.y);
+        }
+        for (int i = candidates.length - 1; i >= 0; i--) {
+            if (shapes.getShape(candidates[i]).contains(p.x, p.y)) {
+                 return candidates[i];
             }
         }
         return -1;
@@ -92,11 +192,42 @@ public class Sketch {
 
     /**
      * Draws all shapes in the sketch with least recent at the very back.
+     * Only draws the shapes whose boxes overlap the clip, found through the index when the clip is small.
      * @param g graphics window
      */
     public void drawAllShapes(Graphics g) {
-        for (int ID: IDtoShapeMap.navigableKeySet()) {
-            IDtoShapeMap.get(ID).draw(g);
+        drawAllShapes(g, -1);
+    }
+
+    /**
+     * Draws all shapes but one, as drawAllShapes above.
+     * @param g graphics window
+     * @param skipID ID of the shape to leave out, or -1
+     */
+    public void drawAllShapes(Graphics g, int skipID) {
+        java.awt.Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            image.forEach((ID, shape) -> {
+                if (ID != skipID) shape.draw(g);
+            });
+            return;
+        }
+        BoundingBox area = new BoundingBox(clip.x, clip.y, clip.x + clip.width - 1, clip.y + clip.height - 1);
+        SketchSnapshot shapes;
+        int[] IDs;
+        synchronized (this) {
+            buildIndex();
+            shapes = image;
+            IDs = index.overlapping(area);
+        }
+        if (IDs == null) {
+            shapes.forEach((ID, shape) -> {
+                if (ID != skipID && shape.getBounds().intersects(area)) shape.draw(g);
+            });
+            return;
+        }
+        for (int ID : IDs) {
+            if (ID != skipID) shapes.getShape(ID).draw(g);
         }
     }
 
@@ -104,6 +235,6 @@ public class Sketch {
      * @return returns all IDs of the shapes in order of oldest to newest.
      */
     public List<Integer> getAllIDsOldestToNewest() {
-        return IDtoShapeMap.navigableKeySet().stream().toList();
+        return image.getIDs();
     }
 }
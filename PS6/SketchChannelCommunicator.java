@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handles communication between the server and one client over a non-blocking channel, for SketchSelectorServer.
+ * All reading and writing happens on the owning event loop; send() may be called from any thread.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class SketchChannelCommunicator implements ClientCommunicator {
+	private SocketChannel channel;								// to talk with client
+	private SelectionKey key;									// our registration with the loop's selector
+	private SketchServer server;								// handling communication for
+	private SketchRoom room;									// the room the client is in, once it has said which
+	private SketchSelectorServer.EventLoop loop;				// the only thread that touches the channel
+	private ByteBuffer inbound = ByteBuffer.allocate(8192);		// bytes read from the client but not yet handled
+	private boolean greeted = false;							// whether the handshake is over (or was skipped)
+	private volatile boolean binary = false;					// whether the client asked for BinaryProtocol
+	private volatile boolean legacy = false;					// whether the client sent no handshake, so predates streamed strokes
+	private int strokeID = -1;									// freehand stroke the client is streaming, if any (sequencer only)
+	private OutboundQueue outbound;								// to client, oldest first
+	private ByteBuffer[] writing;								// batch taken from outbound but not all written yet
+	private int writingFrom;									// first buffer in writing with anything left
+	private AtomicBoolean writeRequested = new AtomicBoolean();	// whether the loop has already been asked to write
+
+	public SketchChannelCommunicator(SocketChannel channel, SketchServer server, SketchSelectorServer.EventLoop loop) {
+		this.channel = channel;
+		this.server = server;
+		this.loop = loop;
+		this.outbound = server.newOutboundQueue();
+	}
+
+	/**
+	 * Registers with the loop's selector, and gives the client a moment to say which encoding it wants.
+	 * Called on the event loop.
+	 */
+	void register(Selector selector) throws IOException {
+		System.out.println("someone connected");
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+		loop.schedule(() -> {
+			// an older editor that only speaks text never sends a handshake
+			if (!greeted && channel.isOpen()) startSession(null);
+		}, SketchServer.HELLO_TIMEOUT);
+	}
+
+	/**
+	 * Finishes the handshake, tells the client the current state of the world, and starts receiving broadcasts
+	 * @param hello the client's handshake line, or null if it didn't send one
+	 */
+	private void startSession(String hello) {
+		greeted = true;
+		long resumeFrom = -1;		// a binary editor that lost its connection may only need what it missed
+		if (hello != null) {
+			String name = BinaryProtocol.roomOf(hello);
+			if (name == null) {
+				System.out.println("refused: " + hello);
+				close();
+				return;
+			}
+			room = server.enter(name);
+			binary = hello.startsWith(BinaryProtocol.HELLO_BINARY);
+			send(binary ? BinaryProtocol.HELLO_BINARY + " " + room.getEpoch() : BinaryProtocol.HELLO_TEXT);
+			if (binary) resumeFrom = BinaryProtocol.resumeFrom(hello, room.getEpoch());
+		}
+		else {
+			legacy = true;
+			room = server.enter(BinaryProtocol.DEFAULT_ROOM);
+		}
+		room.join(this, resumeFrom);
+	}
+
+	/**
+	 * Queues a message to the client; the event loop writes it once the socket can take it
+	 */
+	public void send(ServerMessage msg) {
+		if (legacy && (msg = msg.legacy()) == null) return;
+		outbound.offer(msg);
+		if (writeRequested.compareAndSet(false, true)) {
+			loop.execute(this::enableWrite);
+		}
+	}
+
+	public OutboundQueue getOutbound() {
+		return outbound;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public int getStrokeID() {
+		return strokeID;
+	}
+
+	public void setStrokeID(int shapeID) {
+		strokeID = shapeID;
+	}
+
+	private void enableWrite() {
+		if (key.isValid()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Reads whatever the client has sent and handles each complete line or frame
+	 */
+	void handleRead() {
+		try {
+			if (!inbound.hasRemaining()) {
+				// a message bigger than the buffer; make room for the rest of it
+				ByteBuffer bigger = ByteBuffer.allocate(inbound.capacity() * 2);
+				inbound.flip();
+				bigger.put(inbound);
+				inbound = bigger;
+			}
+			int n = channel.read(inbound);
+			if (n < 0) {
+				close();
+				return;
+			}
+			inbound.flip();
+			handleInbound();
+			inbound.compact();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Handles every complete message in inbound, leaving any partial one for the next read.
+	 * The handshake line is text, and the encoding can switch to binary right after it.
+	 */
+	private void handleInbound() throws IOException {
+		while (inbound.hasRemaining()) {
+			if (binary) {
+				int length = BinaryProtocol.completeFrame(inbound);
+				if (length < 0) return;
+				BinaryProtocol.readVarint(inbound);		// the length we already know
+				ByteBuffer body = inbound.slice(inbound.position(), length);
+				inbound.position(inbound.position() + length);
+				try {
+					Command cmd = BinaryProtocol.decodeRequest(body);
+					if (BinaryProtocol.DEBUG) System.out.println("received: " + cmd);
+					room.submit(cmd, this);
+				}
+				catch (RuntimeException e) {
+					// a frame that doesn't make sense shouldn't take down the whole event loop, just this client
+					e.printStackTrace();
+					close();
+					return;
+				}
+			}
+			else {
+				int eol = inbound.position();
+				while (eol < inbound.limit() && inbound.get(eol) != '\n') eol++;
+				if (eol == inbound.limit()) return;
+				byte[] bytes = new byte[eol - inbound.position()];
+				inbound.get(bytes);
+				inbound.get();		// the newline
+				String line = new String(bytes, StandardCharsets.UTF_8);
+				if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+				if (!greeted) {
+					if (line.startsWith("h ")) {
+						startSession(line);
+						continue;
+					}
+					startSession(null);
+				}
+				System.out.println("received: " + line);
+				try {
+					room.submit(Command.parse(line), this);
+				}
+				catch (RuntimeException e) {
+					// a line that doesn't make sense shouldn't take down the whole event loop
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes as much of the queued output as the socket will take, and stops asking to write once it's all out.
+	 * Once the queue has been closed on a client that fell behind, the resync notice is its last message.
+	 */
+	void handleWrite() {
+		try {
+			while (true) {
+				if (writing == null || writingFrom == writing.length) {
+					List<ServerMessage> batch = outbound.pollAll();
+					if (batch.isEmpty()) break;
+					writing = ServerMessage.gather(batch, binary);
+					writingFrom = 0;
+				}
+				// the whole batch in one gathering write
+				channel.write(writing, writingFrom, writing.length - writingFrom);
+				while (writingFrom < writing.length && !writing[writingFrom].hasRemaining()) writingFrom++;
+				if (writingFrom < writing.length) return;		// socket is full; wait to be writable again
+			}
+			if (outbound.isClosed()) {
+				close();
+				return;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			writeRequested.set(false);
+			// a send may have slipped in between emptying the queue and clearing the flag
+			if (outbound.getDepth() > 0 && writeRequested.compareAndSet(false, true)) {
+				enableWrite();
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Cleans up -- note that also removes self from room's list so it doesn't broadcast here
+	 */
+	private void close() {
+		if (!channel.isOpen()) return;
+		outbound.close();		// first, so a join still waiting its turn knows not to add us
+		if (room != null) {
+			room.removeCommunicator(this);
+			room.submit(Command.strokeEnd(-1, null), this);		// finish any stroke cut off midway
+		}
+		System.out.println("client gone, outbound queue " + outbound);
+		key.cancel();
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
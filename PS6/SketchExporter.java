@@ -0,0 +1,207 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Draws a sketch to a PNG file without a window (the server runs with java.awt.headless), at any size.
+ * The image is drawn TILE rows at a time, each band's tiles in parallel on the fork/join common pool, and each band
+ * is compressed and written out before the next one is drawn, so only one band is ever in memory however big the
+ * image is. Shapes are drawn with their own draw methods, on a white background, tile by tile as the Editor draws
+ * its canvas, so at full size the picture matches what editors show.
+ * The file is written under a temporary name and renamed into place once it's complete.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class SketchExporter {
+	private static final int TILE = 256;				// tile width and height (and band height), in pixels
+	private static final int CHUNK = 1 << 16;			// PNG data chunk size
+	private static final int MAX_SIDE = 1 << 15;		// widest or tallest image drawn; a bigger sketch is shrunk to fit
+	private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+	/**
+	 * Writes the whole sketch (everything from the origin to its farthest shape), width pixels wide
+	 * (or less, so that neither side is over MAX_SIDE)
+	 * @param width how wide the image is, with the height to match; 0 for full size
+	 */
+	public static void writePNG(SketchSnapshot shapes, Path file, int width) throws IOException {
+		BoundingBox area = extent(shapes);
+		// shapes can be anywhere an int reaches, so the area can be wider than an int
+		long areaWidth = (long) area.x2 - area.x1 + 1, areaHeight = (long) area.y2 - area.y1 + 1;
+		long wide = width > 0 ? width : areaWidth;
+		wide = Math.min(wide, Math.min(MAX_SIDE, MAX_SIDE * areaWidth / areaHeight));
+		wide = Math.max(1, wide);
+		long high = Math.max(1, Math.min(MAX_SIDE, Math.round((double) areaHeight * wide / areaWidth)));
+		writePNG(shapes, area, (int) wide, (int) high, file);
+	}
+
+	/**
+	 * Writes the part of the sketch in the area, stretched to width by height pixels (each at most MAX_SIDE)
+	 */
+	public static void writePNG(SketchSnapshot shapes, BoundingBox area, int width, int height, Path file) throws IOException {
+		if (width < 1 || height < 1 || width > MAX_SIDE || height > MAX_SIDE) {
+			throw new IllegalArgumentException("can't export " + width + "x" + height + " pixels");
+		}
+		double scaleX = (double) width / ((long) area.x2 - area.x1 + 1), scaleY = (double) height / ((long) area.y2 - area.y1 + 1);
+		SpatialGrid index = new SpatialGrid();		// only read while drawing, so the tiles can share it
+		shapes.forEach((ID, shape) -> index.put(ID, shape.getBounds()));
+		int cols = (width + TILE - 1) / TILE;
+		BufferedImage[] band = new BufferedImage[cols];
+		byte[] row = new byte[1 + 3 * width];		// filter type (none), then red, green, blue for each pixel
+
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+			out.write(SIGNATURE);
+			byte[] header = new byte[13];
+			putInt(header, 0, width);
+			putInt(header, 4, height);
+			header[8] = 8;			// bits per channel
+			header[9] = 2;			// RGB
+			writeChunk(out, "IHDR", header, header.length);
+
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			DeflaterOutputStream data = new DeflaterOutputStream(new ChunkOutputStream(out), deflater, CHUNK);
+			for (int y = 0; y < height; y += TILE) {
+				int bandY = y, bandHeight = Math.min(TILE, height - y);
+				IntStream.range(0, cols).parallel().forEach(col ->
+						band[col] = drawTile(shapes, index, area, scaleX, scaleY, col * TILE, bandY,
+								Math.min(TILE, width - col * TILE), bandHeight, band[col]));
+				for (int r = 0; r < bandHeight; r++) {
+					int i = 1;
+					for (BufferedImage tile : band) {
+						int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+						for (int p = r * tile.getWidth(), end = p + tile.getWidth(); p < end; p++) {
+							row[i++] = (byte) (pixels[p] >> 16);
+							row[i++] = (byte) (pixels[p] >> 8);
+							row[i++] = (byte) pixels[p];
+						}
+					}
+					data.write(row);
+				}
+			}
+			data.finish();
+			data.flush();
+			deflater.end();
+			writeChunk(out, "IEND", new byte[0], 0);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the box from the origin (the editors' upper left corner) to the farthest shape
+	 */
+	public static BoundingBox extent(SketchSnapshot shapes) {
+		int[] box = {0, 0, 0, 0};
+		shapes.forEach((ID, shape) -> {
+			BoundingBox bounds = shape.getBounds();
+			box[0] = Math.min(box[0], bounds.x1); box[1] = Math.min(box[1], bounds.y1);
+			box[2] = Math.max(box[2], bounds.x2); box[3] = Math.max(box[3], bounds.y2);
+		});
+		return new BoundingBox(box[0], box[1], box[2], box[3]);
+	}
+
+	/**
+	 * Draws the shapes in one tile of the image, reusing the last image drawn there if it's the right size
+	 * @param x left of the tile, in the image
+	 * @param y top of the tile, in the image
+	 */
+	private static BufferedImage drawTile(SketchSnapshot shapes, SpatialGrid index, BoundingBox area, double scaleX, double scaleY,
+										  int x, int y, int width, int height, BufferedImage tile) {
+		if (tile == null || tile.getHeight() != height) tile = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = tile.createGraphics();
+		g.setColor(Color.white);
+		g.fillRect(0, 0, width, height);
+		g.translate(-x, -y);
+		g.scale(scaleX, scaleY);
+		g.translate(-area.x1, -area.y1);
+		// the part of the sketch in the tile, and a pixel more to be safe with rounding
+		BoundingBox seen = new BoundingBox((int) Math.floor(area.x1 + x / scaleX) - 1, (int) Math.floor(area.y1 + y / scaleY) - 1,
+				(int) Math.ceil(area.x1 + (x + width) / scaleX) + 1, (int) Math.ceil(area.y1 + (y + height) / scaleY) + 1);
+		int[] IDs = index.overlapping(seen);
+		if (IDs == null) {
+			shapes.forEach((ID, shape) -> {
+				if (shape.getBounds().intersects(seen)) shape.draw(g);
+			});
+		}
+		else {
+			for (int ID : IDs) {
+				shapes.getShape(ID).draw(g);
+			}
+		}
+		g.dispose();
+		return tile;
+	}
+
+	private static void putInt(byte[] bytes, int at, int value) {
+		bytes[at] = (byte) (value >>> 24);
+		bytes[at+1] = (byte) (value >>> 16);
+		bytes[at+2] = (byte) (value >>> 8);
+		bytes[at+3] = (byte) value;
+	}
+
+	/**
+	 * Writes a PNG chunk: length, type, data, and a CRC32 of the type and data
+	 */
+	private static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+		byte[] header = new byte[8];
+		putInt(header, 0, length);
+		for (int i = 0; i < 4; i++) {
+			header[4+i] = (byte) type.charAt(i);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(header, 4, 4);
+		crc.update(data, 0, length);
+		byte[] check = new byte[4];
+		putInt(check, 0, (int) crc.getValue());
+		out.write(header);
+		out.write(data, 0, length);
+		out.write(check);
+	}
+
+	/**
+	 * Collects the compressed image data and writes it out as IDAT chunks of up to CHUNK bytes
+	 */
+	private static class ChunkOutputStream extends OutputStream {
+		private OutputStream out;
+		private byte[] buffer = new byte[CHUNK];
+		private int size = 0;
+
+		ChunkOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (size == CHUNK) flush();
+			buffer[size++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (size == CHUNK) flush();
+				int n = Math.min(len, CHUNK - size);
+				System.arraycopy(b, off, buffer, size, n);
+				size += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (size > 0) writeChunk(out, "IDAT", buffer, size);
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+import java.awt.AlphaComposite;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The sketch's shapes drawn once into off-screen images, and redrawn into them only where they change, so painting
+ * the canvas is mostly just copying the images. A shape being dragged is left out, to be drawn on top of them each frame.
+ *
+ * The canvas is cut into TILE by TILE tiles, each with its own image and its own box of what's changed in it since it
+ * was last drawn. Painting redraws just the tiles with changes (just those boxes in them), in parallel on the
+ * fork/join common pool, then copies the tiles being painted. The shapes overlapping a tile are found through the
+ * sketch's spatial index, so tiles don't keep lists of their own.
+ * Changes can be reported from any thread; painting happens on the Swing thread.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class SketchLayer {
+	private static final int TILE = 256;		// tile width and height, in pixels
+
+	private Tile[] tiles = new Tile[0];			// row by row; only touched while painting
+	private int cols = 0, rows = 0;				// how many tiles across and down
+	private int width = 0, height = 0;			// size of the canvas they were cut for
+	private volatile int skipped = -1;			// ID of the shape left out of the images, or -1
+	private BoundingBox[] changed = new BoundingBox[0];	// per tile, box around what's changed in it since it was drawn, or null
+	private boolean allChanged = true;			// whether every tile needs redrawing
+
+	/**
+	 * Notes that a shape changed in the box, unless it's the one left out of the images (so they're still right)
+	 */
+	public void invalidate(int ID, BoundingBox box) {
+		if (ID == -1 || ID != skipped) invalidate(box);
+	}
+
+	/**
+	 * Notes that the shapes in the box changed, so the tiles it overlaps have to be redrawn there
+	 */
+	public synchronized void invalidate(BoundingBox box) {
+		if (allChanged || box == null) return;
+		int firstCol = Math.max(0, Math.floorDiv(box.x1, TILE)), lastCol = Math.min(cols - 1, Math.floorDiv(box.x2, TILE));
+		int firstRow = Math.max(0, Math.floorDiv(box.y1, TILE)), lastRow = Math.min(rows - 1, Math.floorDiv(box.y2, TILE));
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int col = firstCol; col <= lastCol; col++) {
+				BoundingBox old = changed[row * cols + col];
+				changed[row * cols + col] = old == null ? box : new BoundingBox(Math.min(old.x1, box.x1), Math.min(old.y1, box.y1),
+						Math.max(old.x2, box.x2), Math.max(old.y2, box.y2));
+			}
+		}
+	}
+
+	/**
+	 * Notes that everything may have changed, e.g. a fresh snapshot
+	 */
+	public synchronized void invalidateAll() {
+		allChanged = true;
+	}
+
+	/**
+	 * Brings the tiles up to date with the sketch, and draws the ones in g's clip
+	 * @param width width of what's being painted
+	 * @param height height of what's being painted
+	 * @param skipID shape to leave out of the images (the caller draws it on top), or -1
+	 */
+	public void paint(Graphics g, Sketch sketch, int width, int height, int skipID) {
+		if (width != this.width || height != this.height) resize(width, height);
+		int wasSkipped = skipped;
+		if (skipID != wasSkipped) {
+			// the shape coming out of (or going back into) the images needs its area redrawn without (or with) it,
+			// wherever it is once changes to it are no longer (or are again) being ignored
+			skipped = skipID;
+			invalidate(bounds(sketch, wasSkipped));
+			invalidate(bounds(sketch, skipID));
+		}
+		BoundingBox[] areas;
+		boolean all;
+		synchronized (this) {
+			areas = changed;
+			all = allChanged;
+			changed = new BoundingBox[tiles.length];
+			allChanged = false;
+		}
+		List<Tile> dirty = new ArrayList<>();
+		for (int i = 0; i < tiles.length; i++) {
+			Tile tile = tiles[i];
+			tile.area = all ? tile.bounds() : areas[i];
+			if (tile.area != null) dirty.add(tile);
+		}
+		if (dirty.size() == 1) dirty.get(0).redraw(sketch, skipID);
+		else dirty.parallelStream().forEach(tile -> tile.redraw(sketch, skipID));
+
+		java.awt.Rectangle clip = g.getClipBounds();
+		for (Tile tile : tiles) {
+			if (clip == null || clip.intersects(tile.x, tile.y, tile.image.getWidth(), tile.image.getHeight())) {
+				g.drawImage(tile.image, tile.x, tile.y, null);
+			}
+		}
+	}
+
+	/**
+	 * Cuts the canvas into new, empty tiles, all needing drawing
+	 */
+	private void resize(int width, int height) {
+		this.width = width;
+		this.height = height;
+		width = Math.max(width, 1);
+		height = Math.max(height, 1);
+		int newCols = (width + TILE - 1) / TILE, newRows = (height + TILE - 1) / TILE;
+		Tile[] newTiles = new Tile[newCols * newRows];
+		for (int row = 0; row < newRows; row++) {
+			for (int col = 0; col < newCols; col++) {
+				newTiles[row * newCols + col] = new Tile(col * TILE, row * TILE,
+						Math.min(TILE, width - col * TILE), Math.min(TILE, height - row * TILE));
+			}
+		}
+		synchronized (this) {
+			tiles = newTiles;
+			cols = newCols;
+			rows = newRows;
+			changed = new BoundingBox[tiles.length];
+			allChanged = true;
+		}
+	}
+
+	private static BoundingBox bounds(Sketch sketch, int ID) {
+		Shape shape = sketch.getShape(ID);
+		return shape != null ? shape.getBounds() : null;
+	}
+
+	/**
+	 * One tile's image, and what in it needs redrawing this time
+	 */
+	private static class Tile {
+		final int x, y;				// upper left corner, on the canvas
+		final BufferedImage image;	// the shapes as last drawn here, transparent elsewhere
+		BoundingBox area;			// what to redraw this time (in canvas coordinates), or null
+
+		Tile(int x, int y, int width, int height) {
+			this.x = x;
+			this.y = y;
+			image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		}
+
+		BoundingBox bounds() {
+			return new BoundingBox(x, y, x + image.getWidth() - 1, y + image.getHeight() - 1);
+		}
+
+		/**
+		 * Clears the area and draws the shapes in it again
+		 */
+		void redraw(Sketch sketch, int skipID) {
+			Graphics2D g = image.createGraphics();
+			g.translate(-x, -y);		// so shapes draw at their canvas coordinates
+			g.setClip(area.x1, area.y1, area.x2 - area.x1 + 1, area.y2 - area.y1 + 1);
+			g.clipRect(x, y, image.getWidth(), image.getHeight());
+			g.setComposite(AlphaComposite.Clear);
+			g.fillRect(x, y, image.getWidth(), image.getHeight());
+			g.setComposite(AlphaComposite.SrcOver);
+			sketch.drawAllShapes(g, skipID);
+			g.dispose();
+		}
+	}
+}
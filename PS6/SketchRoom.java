@@ -0,0 +1,310 @@
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One named sketch on the server, and the editors drawing on it.
+ * Everything that changes the room runs on its shard, one of the server's Sequencers: a room never moves between
+ * shards, and no other shard touches it, so rooms on different shards never wait on each other.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class SketchRoom {
+	// How long moves are held back to be coalesced, configurable with -Dsketch.tickMillis=... (0 sends every move)
+	public static final int TICK_MILLIS = Integer.getInteger("sketch.tickMillis", 16);
+	// How many recent changes are kept for editors that reconnect, configurable with -Dsketch.recentOps=...
+	private static final int RECENT_OPS = Integer.getInteger("sketch.recentOps", 16384);
+	// Where each room is logged so it survives a restart (in a directory named after it; "" for nowhere), and how
+	// hard to try, configurable with -Dsketch.dataDir=... -Dsketch.fsync=ALWAYS|INTERVAL|NEVER -Dsketch.fsyncMillis=... -Dsketch.segmentBytes=...
+	// -Dsketch.logBacklog=... (changes waiting for the disk before the room waits too)
+	private static final String DATA_DIR = System.getProperty("sketch.dataDir", "sketch-data");
+	private static final OpLog.FsyncPolicy FSYNC = OpLog.FsyncPolicy.valueOf(System.getProperty("sketch.fsync", "INTERVAL"));
+	private static final int FSYNC_MILLIS = Integer.getInteger("sketch.fsyncMillis", 100);
+	private static final long SEGMENT_BYTES = Long.getLong("sketch.segmentBytes", 64 << 20);
+	private static final int LOG_BACKLOG = Integer.getInteger("sketch.logBacklog", 65536);
+	// How often the whole sketch is checkpointed (so a restart replays less of the log), at most and at least,
+	// configurable with -Dsketch.checkpointMillis=... -Dsketch.checkpointOps=...
+	private static final int CHECKPOINT_MILLIS = Integer.getInteger("sketch.checkpointMillis", 60000);
+	private static final long CHECKPOINT_OPS = Long.getLong("sketch.checkpointOps", 250_000);
+
+	private String name;								// what editors ask for in their handshake
+	private Sequencer shard;							// the only thread that changes the sketch
+	private ArrayList<ClientCommunicator> comms;		// all the connections with clients in this room
+	private HashMap<ClientCommunicator, Long> joinedAt;	// sequence number of the snapshot each client was first sent
+	private Sketch sketch;								// the state of this room's world
+	private long seq = 0;								// sequence number of the latest change; only the shard touches it
+	private BroadcastScheduler scheduler;				// coalesces moves before they go out
+	private RecentOps recent;							// latest changes that went out, for editors that reconnect
+	private long epoch;									// tells this room's sequence numbers apart from an earlier load's
+	private LogWriter logWriter;						// writes the log, shared with the shard's other rooms (null if not keeping one)
+	private ScheduledExecutorService checkpointWorkers;	// write checkpoints, shared with every room
+	private volatile OpLog log;							// durable record of every change, or null if not keeping (or no longer able to)
+	private volatile Checkpointer checkpointer;			// writes the whole sketch now and then, if keeping a log (and able to restore it)
+	private AtomicInteger joining = new AtomicInteger();	// clients that have picked this room but aren't in it yet
+	private long emptySince;							// when the last client left (ms)
+	private volatile boolean closed = false;			// whether the room has been unloaded
+	private boolean tickQueued = false;					// whether tick() is waiting on the shard's next tick (shard only)
+	private long exportedVersion = -1;					// version of the sketch last exported, so an unchanged one isn't again
+
+	/**
+	 * Sets up an empty room that's never kept on disk
+	 */
+	public SketchRoom(String name, Sequencer shard) {
+		this(name, shard, null, null);
+	}
+
+	/**
+	 * Sets up an empty room; call load() (on the shard) before anything else to pick up where it was left off
+	 * @param logWriter thread to write the room's log, shared with the shard's other rooms (null to keep none)
+	 * @param checkpointWorkers threads to write its checkpoints, shared with every room
+	 */
+	public SketchRoom(String name, Sequencer shard, LogWriter logWriter, ScheduledExecutorService checkpointWorkers) {
+		this.name = name;
+		this.shard = shard;
+		this.logWriter = logWriter;
+		this.checkpointWorkers = checkpointWorkers;
+		sketch = new Sketch();
+		comms = new ArrayList<ClientCommunicator>();
+		joinedAt = new HashMap<ClientCommunicator, Long>();
+		recent = new RecentOps(RECENT_OPS);
+		epoch = new Random().nextLong() & Long.MAX_VALUE | 1;
+		scheduler = new BroadcastScheduler(TICK_MILLIS, this::fanOut);
+		emptySince = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return whether rooms are kept on disk, and so can be unloaded when nobody's in them
+	 */
+	public static boolean isPersistent() {
+		return !DATA_DIR.isEmpty();
+	}
+
+	/**
+	 * Restores the room from its checkpoint and log, if keeping them. Called only on the shard.
+	 * @param previous done once the room's last load has been unloaded and saved (null if it has been, or never was);
+	 * only then are its files read, so in the meantime the shard waits
+	 */
+	void load(CompletableFuture<Void> previous) {
+		if (!isPersistent() || logWriter == null) return;
+		if (previous != null) previous.handle((v, e) -> null).join();
+		try {
+			long start = System.nanoTime();
+			Path dir = new File(DATA_DIR, name).toPath();
+			log = new OpLog(dir, FSYNC, FSYNC_MILLIS, SEGMENT_BYTES, LOG_BACKLOG, logWriter);
+			long checkpointed = Checkpointer.restore(dir, sketch);
+			seq = log.replay(sketch, checkpointed);
+			System.out.println("room " + name + ": restored " + sketch.snapshot().size() + " shapes up to change " + seq
+					+ " (checkpoint at " + checkpointed + ") in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+			checkpointer = new Checkpointer(dir, log, CHECKPOINT_MILLIS, checkpointed,
+					() -> shard.execute(() -> {
+						if (!closed) checkpoint();
+					}), checkpointWorkers);
+			checkpointer.start();
+			if (log.hasSetAside()) checkpoint();		// so what was restored is safe without the part set aside
+		}
+		catch (IOException | RuntimeException e) {
+			// carry on in memory rather than turn everyone away, without a log nobody writes; never unloaded (see
+			// isIdleFor), since there's nowhere to save it
+			System.err.println("room " + name + ": can't restore or log changes; keeping it in memory until the server stops");
+			e.printStackTrace();
+			if (log != null) log.close();
+			log = null;
+		}
+	}
+
+	/**
+	 * Sends out any pending moves, captures a last checkpoint, and has it written and the log closed off the shard
+	 * (so the shard's other rooms don't wait on the disk). Called only on the shard, once nobody is in the room;
+	 * the room can't be used after this (the server loads a fresh one on the next join).
+	 * @return done once the checkpoint is written and the log closed
+	 */
+	CompletableFuture<Void> close() {
+		closed = true;
+		scheduler.flushMoves();
+		CompletableFuture<Void> saved = CompletableFuture.completedFuture(null);
+		if (checkpointer != null) {
+			checkpoint();
+			saved = checkpointer.close();
+		}
+		OpLog log = this.log;
+		long last = seq;
+		return saved.thenRun(() -> {
+			if (log != null) log.close();
+			System.out.println("room " + name + ": unloaded at change " + last);
+		});
+	}
+
+	/**
+	 * Makes sure everything logged so far is on disk, e.g. when the server is shutting down
+	 */
+	void closeLog() {
+		OpLog log = this.log;		// (the shard may give up on it meanwhile)
+		if (log != null) log.close();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Sequencer getShard() {
+		return shard;
+	}
+
+	public Sketch getSketch() {
+		return sketch;
+	}
+
+	/**
+	 * @return this room's epoch, sent in the handshake so an editor can resume with it later
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Draws the sketch to dir/<name>.png, if it's changed since the last time. Can be called from any thread, since
+	 * it draws a snapshot, which nothing changes; but only from one at a time.
+	 * @param width how wide the image is; 0 for full size
+	 */
+	void export(File dir, int width) throws IOException {
+		SketchSnapshot shapes = sketch.snapshot();
+		if (closed || shapes.getVersion() == exportedVersion) return;
+		long start = System.nanoTime();
+		SketchExporter.writePNG(shapes, new File(dir, name + ".png").toPath(), width);
+		exportedVersion = shapes.getVersion();
+		System.out.println("room " + name + ": exported " + shapes.size() + " shapes in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+	}
+
+	/**
+	 * Counts a client on its way in, so the room isn't unloaded from under it
+	 */
+	void expect() {
+		joining.incrementAndGet();
+	}
+
+	/**
+	 * @return whether nobody has been in the room, or on their way in, for that long, and it can be saved to be
+	 * loaded again later (a room that couldn't be restored can't, so it's never idle)
+	 */
+	synchronized boolean isIdleFor(long millis) {
+		return comms.isEmpty() && joining.get() == 0 && !closed && checkpointer != null
+				&& System.currentTimeMillis() - emptySince >= millis;
+	}
+
+	/**
+	 * Hands a command from a client over to the shard, which applies it to the sketch and broadcasts it in turn
+	 * @param cmd the parsed command
+	 * @param from client that sent it
+	 */
+	public void submit(Command cmd, ClientCommunicator from) {
+		shard.execute(() -> {
+			if (!closed) SketchServerCommunicator.processCommand(cmd, from, this);
+		});
+	}
+
+	/**
+	 * Tells a newly connected client the current state of the world, and then every change after it.
+	 * Joining takes its turn on the shard, so the snapshot falls exactly between two changes.
+	 * @param resumeFrom last sequence number the client got before it lost its connection, or -1 if it's new
+	 */
+	public void join(ClientCommunicator comm, long resumeFrom) {
+		shard.execute(() -> admit(comm, resumeFrom));
+	}
+
+	private synchronized void admit(ClientCommunicator comm, long resumeFrom) {
+		joining.decrementAndGet();
+		if (comm.getOutbound().isClosed()) return;		// gone before its turn came
+		comms.add(comm);
+		// A reconnecting client only needs what it missed, if we still have all of that
+		List<ServerMessage> missed = resumeFrom >= 0 && resumeFrom <= seq ? recent.since(resumeFrom) : null;
+		if (missed != null && missed.size() <= SketchServer.QUEUE_CAPACITY / 2) {
+			joinedAt.put(comm, resumeFrom);
+			for (ServerMessage msg : missed) {
+				comm.send(msg);
+			}
+			System.out.println("resumed from " + resumeFrom + ", " + missed.size() + " missed");
+			return;
+		}
+		SketchSnapshot snapshot = sketch.snapshot().atVersion(seq);
+		joinedAt.put(comm, seq);		// changes up to here may still be waiting to be coalesced, but they're in the snapshot
+		if (snapshot.size() > 0 || comm.isBinary()) {
+			comm.send(ServerMessage.snapshot(Command.snapshot(snapshot), comm.isBinary()));
+		}
+	}
+
+	/**
+	 * Removes the communicator from the list of current communicators
+	 */
+	public synchronized void removeCommunicator(ClientCommunicator comm) {
+		comms.remove(comm);
+		joinedAt.remove(comm);
+		if (comms.isEmpty()) emptySince = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return summary of the clients' outbound queues: total depth now, and deepest any has been
+	 */
+	public synchronized String queueStats() {
+		int depth = 0, highWaterMark = 0;
+		long dropped = 0;
+		for (ClientCommunicator comm : comms) {
+			depth += comm.getOutbound().getDepth();
+			highWaterMark = Math.max(highWaterMark, comm.getOutbound().getHighWaterMark());
+			dropped += comm.getOutbound().getDropped();
+		}
+		return "room " + name + ": " + comms.size() + " clients, queued " + depth + ", high-water mark " + highWaterMark
+				+ ", dropped " + dropped + "; " + shard + ", " + scheduler + ", " + recent
+				+ (log != null ? ", " + log + ", " + checkpointer : "");
+	}
+
+	/**
+	 * Sends the message from the one communicator to all in the room (including the originator), stamped with the
+	 * next sequence number. Moves are coalesced per shape and go out at the end of the tick; everything else goes out now.
+	 * Called only on the shard.
+	 */
+	public void broadcast(Command msg) {
+		msg.setSeq(++seq);
+		if (scheduler.submit(msg) && !tickQueued) {
+			tickQueued = true;
+			shard.atNextTick(this::tick);
+		}
+		if (checkpointer != null && seq % CHECKPOINT_OPS == 0) checkpoint();
+	}
+
+	/**
+	 * Sends the moves held back this tick. Called only on the shard, at the tick after a move was held back.
+	 */
+	private void tick() {
+		tickQueued = false;
+		if (!closed) scheduler.flushMoves();
+	}
+
+	/**
+	 * Hands the sketch as of now over to be checkpointed. Called only on the shard.
+	 */
+	private void checkpoint() {
+		if (checkpointer != null) checkpointer.capture(sketch.snapshot(), seq, sketch.peekAvailID());
+	}
+
+	/**
+	 * Actually sends the message to every client, except those whose snapshot already has it.
+	 * Only queues it for each client, so this never waits on a slow socket.
+	 */
+	private synchronized void fanOut(Command msg) {
+		ServerMessage encoded = new ServerMessage(msg);		// encoded once, shared by every client (and the log)
+		recent.add(encoded);
+		if (log != null && !log.append(encoded)) {
+			// the log's thread has stopped; checkpoints still save the room now and then
+			System.err.println("room " + name + ": can't log changes any more, " + log);
+			log = null;
+		}
+		for (ClientCommunicator comm : comms) {
+			if (msg.getSeq() > joinedAt.get(comm)) {
+				comm.send(encoded);
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selector-based front end for SketchServer: a small fixed pool of event-loop threads
+ * accepts, reads and writes for every client, instead of one blocking thread per socket.
+ * Clients still speak the line protocol in command_message_key.txt.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class SketchSelectorServer {
+	private ServerSocketChannel listen;		// for accepting connections
+	private SketchServer server;			// whose sketch and clients we serve
+	private EventLoop[] loops;				// the fixed pool of selector threads
+	private int nextLoop = 0;				// round-robin assignment of new connections
+	private ScheduledExecutorService timer;	// hands delayed work (like handshake timeouts) back to the loops
+
+	public SketchSelectorServer(ServerSocketChannel listen, SketchServer server, int numLoops) throws IOException {
+		this.listen = listen;
+		this.server = server;
+		loops = new EventLoop[Math.max(1, numLoops)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop("sketch-loop-" + i);
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "sketch-loop-timer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Starts the event loops, with the first one also accepting connections, and runs until they die
+	 */
+	public void serve() throws IOException, InterruptedException {
+		listen.configureBlocking(false);
+		listen.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		for (EventLoop loop : loops) {
+			loop.setDaemon(true);
+			loop.start();
+		}
+		for (EventLoop loop : loops) {
+			loop.join();
+		}
+	}
+
+	/**
+	 * Accepts every pending connection and hands each one to the next event loop
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = listen.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			SocketChannel accepted = channel;
+			loop.execute(() -> {
+				try {
+					SketchChannelCommunicator comm = new SketchChannelCommunicator(accepted, server, loop);
+					comm.register(loop.selector);
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+		}
+	}
+
+	/**
+	 * One selector thread; other threads hand it work through execute() so that only it touches its keys
+	 */
+	class EventLoop extends Thread {
+		private Selector selector;
+		private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+		EventLoop(String name) throws IOException {
+			super(name);
+			selector = Selector.open();
+		}
+
+		/**
+		 * Runs the task on this loop's thread: right away if already on it, otherwise once the selector wakes up
+		 */
+		void execute(Runnable task) {
+			if (Thread.currentThread() == this) {
+				task.run();
+			}
+			else {
+				tasks.add(task);
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Runs the task on this loop's thread after a delay
+		 */
+		void schedule(Runnable task, long delayMillis) {
+			timer.schedule(() -> execute(task), delayMillis, TimeUnit.MILLISECONDS);
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) {
+							accept();
+						}
+						else {
+							SketchChannelCommunicator comm = (SketchChannelCommunicator) key.attachment();
+							if (key.isReadable()) comm.handleRead();
+							if (key.isValid() && key.isWritable()) comm.handleWrite();
+						}
+					}
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -1,28 +1,176 @@
 import java.net.*;
-import java.util.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.*;
 import java.io.*;
 
 /**
  * A server to handle sketches: getting requests from the clients,
- * updating the overall state, and passing them on to the clients
+ * updating the overall state, and passing them on to the clients.
+ * Hosts any number of named rooms, each its own sketch (see SketchRoom), spread over a fixed pool of shard threads.
  *
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012; revised Winter 2014 to separate SketchServerCommunicator
  */
 public class SketchServer {
+	// Per-client outbound queues, configurable with -Dsketch.queueCapacity=... -Dsketch.overflowPolicy=DROP_STALE_MOVES|DISCONNECT
+	public static final int QUEUE_CAPACITY = Integer.getInteger("sketch.queueCapacity", 4096);
+	private static final OutboundQueue.OverflowPolicy OVERFLOW_POLICY =
+			OutboundQueue.OverflowPolicy.valueOf(System.getProperty("sketch.overflowPolicy", "DROP_STALE_MOVES"));
+	// How long to wait for a new client's handshake before assuming it's an older editor that only speaks text
+	public static final int HELLO_TIMEOUT = Integer.getInteger("sketch.helloTimeoutMillis", 250);
+	// How many threads the rooms are spread over, configurable with -Dsketch.shards=...
+	private static final int SHARDS = Integer.getInteger("sketch.shards", Runtime.getRuntime().availableProcessors());
+	// How long a room nobody's in stays loaded (if rooms are kept on disk), configurable with -Dsketch.roomIdleMillis=...
+	private static final int ROOM_IDLE_MILLIS = Integer.getInteger("sketch.roomIdleMillis", 60000);
+	// How many threads write every room's checkpoints (if rooms are kept on disk), configurable with -Dsketch.checkpointThreads=...
+	private static final int CHECKPOINT_THREADS = Integer.getInteger("sketch.checkpointThreads", 2);
+	// How far (in pixels) a finished freehand stroke may be straightened to drop points, configurable with
+	// -Dsketch.simplify=... (0 keeps every point)
+	public static final double SIMPLIFY = Double.parseDouble(System.getProperty("sketch.simplify", "1"));
+	// How often each room's sketch is drawn to <exportDir>/<room>.png (0 for never), and how wide (0 for full size),
+	// configurable with -Dsketch.exportMillis=... -Dsketch.exportDir=... -Dsketch.exportWidth=...
+	private static final int EXPORT_MILLIS = Integer.getInteger("sketch.exportMillis", 0);
+	private static final String EXPORT_DIR = System.getProperty("sketch.exportDir", "sketch-exports");
+	private static final int EXPORT_WIDTH = Integer.getInteger("sketch.exportWidth", 0);
+
 	private ServerSocket listen;						// for accepting connections
-	private ArrayList<SketchServerCommunicator> comms;	// all the connections with clients
-	private Sketch sketch;								// the state of the world
-	
+	private Sequencer[] shards;							// each room's changes all happen on one of these
+	private LogWriter[] logWriters;						// writes the logs of each shard's rooms, if rooms are kept on disk
+	private ScheduledExecutorService checkpointWorkers;	// writes every room's checkpoints, if rooms are kept on disk
+	private ConcurrentHashMap<String, SketchRoom> rooms;	// the rooms loaded now, by name; lock it to load or unload one
+	private ConcurrentHashMap<String, CompletableFuture<Void>> unloading;	// rooms unloaded but not yet saved, by name
+	private ScheduledExecutorService timer;				// hands ticks and idle checks to the shards
+	private ScheduledExecutorService exporter;			// draws the rooms to PNGs, if asked to; slow, so not on the timer
+
 	public SketchServer(ServerSocket listen) {
 		this.listen = listen;
-		sketch = new Sketch();
-		comms = new ArrayList<SketchServerCommunicator>();
+		rooms = new ConcurrentHashMap<String, SketchRoom>();
+		unloading = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+		shards = new Sequencer[Math.max(1, SHARDS)];
+		logWriters = new LogWriter[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new Sequencer("shard-" + i);
+			shards[i].start();
+			if (SketchRoom.isPersistent()) {
+				logWriters[i] = new LogWriter("log-writer-" + i);
+				logWriters[i].start();
+			}
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "sketch-timer");
+			t.setDaemon(true);
+			return t;
+		});
+		if (SketchRoom.TICK_MILLIS > 0) {
+			timer.scheduleAtFixedRate(this::tick, SketchRoom.TICK_MILLIS, SketchRoom.TICK_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		if (SketchRoom.isPersistent()) {
+			checkpointWorkers = Executors.newScheduledThreadPool(Math.max(1, CHECKPOINT_THREADS), r -> {
+				Thread t = new Thread(r, "checkpointer");
+				t.setDaemon(true);
+				return t;
+			});
+			int sweep = Math.max(100, ROOM_IDLE_MILLIS / 4);
+			timer.scheduleAtFixedRate(this::unloadIdleRooms, sweep, sweep, TimeUnit.MILLISECONDS);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				for (SketchRoom room : rooms.values()) {
+					room.closeLog();
+				}
+				for (CompletableFuture<Void> saved : unloading.values()) {
+					saved.join();
+				}
+			}));
+		}
+		if (EXPORT_MILLIS > 0) {
+			exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "sketch-exporter");
+				t.setDaemon(true);
+				return t;
+			});
+			exporter.scheduleWithFixedDelay(this::exportRooms, EXPORT_MILLIS, EXPORT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Finds the named room, loading it if nobody's been in it lately, and counts the client on its way in;
+	 * the client should then join() it
+	 * @param name room name from the client's handshake
+	 */
+	public SketchRoom enter(String name) {
+		synchronized (rooms) {
+			SketchRoom room = rooms.get(name);
+			if (room == null) {
+				// same name, same shard; and a room still being saved after unloading is done before its reload starts
+				int i = Math.floorMod(name.hashCode(), shards.length);
+				Sequencer shard = shards[i];
+				room = new SketchRoom(name, shard, logWriters[i], checkpointWorkers);
+				rooms.put(name, room);
+				SketchRoom loading = room;
+				CompletableFuture<Void> previous = unloading.get(name);
+				shard.execute(() -> loading.load(previous));
+			}
+			room.expect();
+			return room;
+		}
 	}
 
-	public Sketch getSketch() {
-		return sketch;
+	/**
+	 * Sends the held-back moves of every room that has any, on its own shard; shards with none aren't woken
+	 */
+	private void tick() {
+		for (Sequencer shard : shards) {
+			shard.tick();
+		}
 	}
-	
+
+	/**
+	 * Unloads every room nobody has been in for a while, each on its own shard (and saved off it)
+	 */
+	private void unloadIdleRooms() {
+		for (SketchRoom room : rooms.values()) {
+			if (!room.isIdleFor(ROOM_IDLE_MILLIS)) continue;
+			room.getShard().execute(() -> {
+				synchronized (rooms) {
+					// someone may have come in since
+					if (!room.isIdleFor(ROOM_IDLE_MILLIS)) return;
+					rooms.remove(room.getName());
+					// noted before anyone can come in again, so a reload waits until it's saved
+					CompletableFuture<Void> saved = room.close();
+					unloading.put(room.getName(), saved);
+					saved.whenComplete((done, e) -> unloading.remove(room.getName(), saved));
+				}
+			});
+		}
+	}
+
+	/**
+	 * Draws every room loaded now that's changed since it was last drawn
+	 */
+	private void exportRooms() {
+		File dir = new File(EXPORT_DIR);
+		dir.mkdirs();
+		for (SketchRoom room : rooms.values()) {
+			try {
+				room.export(dir, EXPORT_WIDTH);
+			}
+			catch (IOException | RuntimeException e) {
+				// just this room, this time; anything escaping would cancel every later export
+				System.err.println("room " + room.getName() + ": can't export");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return summary of every room loaded now
+	 */
+	public String stats() {
+		StringBuilder stats = new StringBuilder(rooms.size() + " rooms");
+		for (SketchRoom room : rooms.values()) {
+			stats.append("\n").append(room.queueStats());
+		}
+		return stats.toString();
+	}
+
 	/**
 	 * The usual loop of accepting connections and firing off new threads to handle them
 	 */
@@ -31,35 +179,48 @@ public class SketchServer {
 		while (true) {
 			SketchServerCommunicator comm = new SketchServerCommunicator(listen.accept(), this);
 			comm.setDaemon(true);
-			comm.start();
-			addCommunicator(comm);
+			comm.start();		// adds itself once it knows which encoding the client wants
 		}
 	}
 
 	/**
-	 * Adds the communicator to the list of current communicators
+	 * Accepts and serves every connection from a small fixed pool of selector threads instead of a thread per client.
+	 * Requires listen to have been opened through a ServerSocketChannel.
+	 * @param loops number of event-loop threads
 	 */
-	public synchronized void addCommunicator(SketchServerCommunicator comm) {
-		comms.add(comm);
+	public void getConnectionsNonBlocking(int loops) throws IOException, InterruptedException {
+		ServerSocketChannel channel = listen.getChannel();
+		if (channel == null) {
+			throw new IOException("non-blocking mode needs a ServerSocket opened by a ServerSocketChannel");
+		}
+		System.out.println("server ready for connections (" + loops + " event loops)");
+		new SketchSelectorServer(channel, this, loops).serve();
 	}
 
 	/**
-	 * Removes the communicator from the list of current communicators
+	 * @return a fresh outbound queue for a new client, with the configured capacity and overflow policy
 	 */
-	public synchronized void removeCommunicator(SketchServerCommunicator comm) {
-		comms.remove(comm);
+	public OutboundQueue newOutboundQueue() {
+		return new OutboundQueue(QUEUE_CAPACITY, OVERFLOW_POLICY);
 	}
 
 	/**
-	 * Sends the message from the one communicator to all (including the originator)
+	 * Run with no arguments for a thread per client, or with "nio [loops]" for the selector-based server
 	 */
-	public synchronized void broadcast(String msg) {
-		for (SketchServerCommunicator comm : comms) {
-			comm.send(msg);
-		}
-	}
-	
 	public static void main(String[] args) throws Exception {
-		new SketchServer(new ServerSocket(4242)).getConnections();
+		// never opens a window, but draws exports with AWT
+		if (System.getProperty("java.awt.headless") == null) System.setProperty("java.awt.headless", "true");
+		if (args.length > 0 && args[0].equals("nio")) {
+			int loops = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+			ServerSocketChannel listen = ServerSocketChannel.open();
+			listen.bind(new InetSocketAddress(4242));
+			new SketchServer(listen.socket()).getConnectionsNonBlocking(loops);
+		}
+		else {
+			// still opened through a channel, so each client's writer can use gathering writes
+			ServerSocketChannel listen = ServerSocketChannel.open();
+			listen.bind(new InetSocketAddress(4242));
+			new SketchServer(listen.socket()).getConnections();
+		}
 	}
 }
@@ -1,6 +1,8 @@
 import java.awt.*;
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -8,23 +10,49 @@ import java.util.List;
  *
  * @author Selena Zhou, CS10 23W, PS6
  */
-public class SketchServerCommunicator extends Thread {
+public class SketchServerCommunicator extends Thread implements ClientCommunicator {
 	private Socket sock;					// to talk with client
-	private BufferedReader in;				// from client
-	private PrintWriter out;				// to client
+	private DataInputStream in;				// from client
+	private OutputStream out;				// to client, when the socket has no channel to gather-write to
 	private SketchServer server;			// handling communication for
+	private SketchRoom room;				// the room the client is in, once it has said which
+	private OutboundQueue outbound;			// messages waiting for the writer thread
+	private volatile boolean binary;		// whether the client asked for BinaryProtocol rather than text
+	private volatile boolean legacy;		// whether the client sent no handshake, so predates streamed strokes
+	private int strokeID = -1;				// freehand stroke the client is streaming, if any (sequencer only)
 
 	public SketchServerCommunicator(Socket sock, SketchServer server) {
 		this.sock = sock;
 		this.server = server;
+		this.outbound = server.newOutboundQueue();
 	}
 
 	/**
-	 * Sends a message to the client
+	 * Queues a message to the client; never waits on the socket, so a slow client can't hold up the broadcast
 	 * @param msg
 	 */
-	public void send(String msg) {
-		out.println(msg);
+	public void send(ServerMessage msg) {
+		if (legacy && (msg = msg.legacy()) == null) return;
+		outbound.offer(msg);
+	}
+
+	/**
+	 * @return this client's outbound queue, for its depth and high-water mark
+	 */
+	public OutboundQueue getOutbound() {
+		return outbound;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public int getStrokeID() {
+		return strokeID;
+	}
+
+	public void setStrokeID(int shapeID) {
+		strokeID = shapeID;
 	}
 	
 	/**
@@ -35,102 +63,193 @@ public class SketchServerCommunicator extends Thread {
 			System.out.println("someone connected");
 			
 			// Communication channel
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			out = new PrintWriter(sock.getOutputStream(), true);
+			in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+			out = sock.getOutputStream();
+			Thread writer = new Thread(this::writeLoop, getName() + "-writer");
+			writer.setDaemon(true);
+			writer.start();
 
-			// Tell the client the current state of the world
-			for (int shapeIDKey: server.getSketch().getAllIDsOldestToNewest()) {
-				String cmd = "s " + shapeIDKey + " " + server.getSketch().getShape(shapeIDKey).toString();
-				out.println(cmd);
+			// Handshake: newer editors say which encoding they want; older ones say nothing, so they get text
+			String hello = awaitHello();
+			long resumeFrom = -1;		// a binary editor that lost its connection may only need what it missed
+			if (hello != null) {
+				String name = BinaryProtocol.roomOf(hello);
+				if (name == null) {
+					System.out.println("refused: " + hello);
+					return;
+				}
+				room = server.enter(name);
+				binary = hello.startsWith(BinaryProtocol.HELLO_BINARY);
+				send(binary ? BinaryProtocol.HELLO_BINARY + " " + room.getEpoch() : BinaryProtocol.HELLO_TEXT);
+				if (binary) resumeFrom = BinaryProtocol.resumeFrom(hello, room.getEpoch());
+			}
+			else {
+				legacy = true;
+				room = server.enter(BinaryProtocol.DEFAULT_ROOM);
 			}
 
+			// Tell the client the current state of its room, and everything from now on
+			room.join(this, resumeFrom);
+
 			// Keep getting and handling messages from the client
-			String line;
-			while ((line = in.readLine()) != null) {
-				System.out.println("received: " + line);
-				processCommand(line);
+			if (binary) {
+				Command cmd;
+				while ((cmd = BinaryProtocol.readRequest(in)) != null) {
+					if (BinaryProtocol.DEBUG) System.out.println("received: " + cmd);
+					room.submit(cmd, this);
+				}
+			}
+			else {
+				String line;
+				while ((line = BinaryProtocol.readLine(in)) != null) {
+					System.out.println("received: " + line);
+					try {
+						room.submit(Command.parse(line), this);
+					}
+					catch (RuntimeException e) {
+						// a line that doesn't make sense is skipped, rather than hanging up on the client
+						e.printStackTrace();
+					}
+				}
 			}
-
-			// Clean up -- note that also remove self from server's list so it doesn't broadcast here
-			server.removeCommunicator(this);
-			out.close();
-			in.close();
-			sock.close();
 		}
 		catch (IOException e) {
-			e.printStackTrace();
+			// either the client went away, or the writer gave up on it and closed the socket
+			if (!outbound.isClosed()) e.printStackTrace();
+		}
+		finally {
+			// Clean up -- note that also remove self from room's list so it doesn't broadcast here
+			outbound.close();		// first, so a join still waiting its turn knows not to add us
+			if (room != null) {
+				room.removeCommunicator(this);
+				room.submit(Command.strokeEnd(-1, null), this);		// finish any stroke cut off midway
+			}
+			System.out.println("client gone, outbound queue " + outbound);
 		}
 	}
 
 	/**
-	 * Helper function that processes a command received.
-	 * @param cmd String command, outlined by command_message_key.txt
+	 * Waits briefly for the client's handshake line, without consuming anything else it sends
+	 * @return the handshake line, or null if the client started with something else or said nothing in time
 	 */
-	private void processCommand(String cmd) {
-		String[] tokens = cmd.split(" ");
-		switch (tokens[0]) {
-			case "a" -> {		// add new shape
-				int shapeID = addShapeToSketch(tokens);
-				server.broadcast(String.format("s %d %s", shapeID, server.getSketch().getShape(shapeID).toString()));
-			}
-			case "d" -> {		// delete existing shape
-				server.getSketch().deleteShape(Integer.parseInt(tokens[1]));
-				server.broadcast(cmd);
+	private String awaitHello() throws IOException {
+		sock.setSoTimeout(SketchServer.HELLO_TIMEOUT);
+		try {
+			in.mark(1);
+			int first = in.read();
+			in.reset();
+			if (first != 'h') return null;
+			sock.setSoTimeout(0);
+			return BinaryProtocol.readLine(in);
+		}
+		catch (SocketTimeoutException e) {
+			return null;
+		}
+		finally {
+			sock.setSoTimeout(0);
+		}
+	}
+
+	/**
+	 * Drains the outbound queue onto the socket, a batch per gathering write, until the queue is closed;
+	 * then closes the socket (after the resync notice, if the client fell too far behind)
+	 */
+	private void writeLoop() {
+		try {
+			List<ServerMessage> batch;
+			while (!(batch = outbound.takeAll()).isEmpty()) {
+				if (sock.getChannel() != null) {
+					ServerMessage.writeAll(sock.getChannel(), batch, binary);
+				}
+				else {
+					for (ServerMessage msg : batch) {
+						ByteBuffer bytes = msg.bytes(binary);
+						byte[] copy = new byte[bytes.remaining()];
+						bytes.get(copy);
+						out.write(copy);
+					}
+					out.flush();
+				}
 			}
-			case "m" -> {		// move existing shape
-				server.getSketch().moveShapeTo(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
-				server.broadcast(cmd);
+		}
+		catch (IOException e) {
+			if (!sock.isClosed()) e.printStackTrace();
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		finally {
+			try {
+				sock.close();
 			}
-			case "r" -> {		// recolor existing shape
-				server.getSketch().recolorShape(Integer.parseInt(tokens[1]), new Color(Integer.parseInt(tokens[2])));
-				server.broadcast(cmd);
+			catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
 	}
 
-	// Helper function to determine which shape to create and then add it to sketch
-	private int addShapeToSketch(String[] tokens) {
-		Sketch serverSketch = server.getSketch();
-		Shape shape = null;
-		switch (tokens[1]) {
-			case "ellipse":
-				shape = new Ellipse(Integer.parseInt(tokens[2]),
-											Integer.parseInt(tokens[3]),
-											Integer.parseInt(tokens[4]),
-											Integer.parseInt(tokens[5]),
-											new Color(Integer.parseInt(tokens[6])));
-				break;
-			case "rectangle":
-				shape = new Rectangle(Integer.parseInt(tokens[2]),
-												Integer.parseInt(tokens[3]),
-												Integer.parseInt(tokens[4]),
-												Integer.parseInt(tokens[5]),
-												new Color(Integer.parseInt(tokens[6])));
-				break;
-			case "freehand":
-				int size = tokens.length;
-				shape = new Polyline(new Point(Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3])),
-						new Color(Integer.parseInt(tokens[size-1])));
-				for (int i = 4; i < size-1; i+=2) {
-					int x = Integer.parseInt(tokens[i]);
-					int y = Integer.parseInt(tokens[i+1]);
-					((Polyline)shape).addPoint(new Point(x, y));
+	/**
+	 * Helper function that processes a command received, in either encoding.
+	 * Runs on the room's shard, for either kind of communicator, so it only needs the client and room the command was sent between.
+	 * @param cmd the parsed command
+	 * @param from client that sent it, which keeps track of the stroke it's streaming
+	 * @param room room whose sketch is updated and whose clients are told
+	 */
+	static void processCommand(Command cmd, ClientCommunicator from, SketchRoom room) {
+		Sketch sketch = room.getSketch();
+		switch (cmd.getType()) {
+			case Command.ADD -> {		// add new shape under the next available ID
+				Shape shape = cmd.getShape();
+				if (shape instanceof Polyline) shape = ((Polyline) shape).simplified(SketchServer.SIMPLIFY);
+				if (shape != null) {
+					int shapeID = sketch.getAvailID();
+					sketch.addShape(shapeID, shape);
+					room.broadcast(Command.shape(shapeID, shape));
 				}
-				break;
-			case "segment":
-				shape = new Segment(Integer.parseInt(tokens[2]),
-											Integer.parseInt(tokens[3]),
-											Integer.parseInt(tokens[4]),
-											Integer.parseInt(tokens[5]),
-											new Color(Integer.parseInt(tokens[6])));
-				break;
-		}
-		if (shape != null) {
-			int newID = serverSketch.getAvailID();
-			serverSketch.addShape(newID, shape);
-			return newID;
+			}
+			case Command.DELETE -> {	// delete existing shape
+				sketch.deleteShape(cmd.getShapeID());
+				room.broadcast(cmd);
+			}
+			case Command.MOVE -> {		// move existing shape
+				sketch.moveShapeTo(cmd.getShapeID(), cmd.getX(), cmd.getY());
+				room.broadcast(cmd);
+			}
+			case Command.RECOLOR -> {	// recolor existing shape
+				sketch.recolorShape(cmd.getShapeID(), new Color(cmd.getRGB()));
+				room.broadcast(cmd);
+			}
+			case Command.STROKE_BEGIN -> {	// start streaming a freehand stroke, under an ID reserved now
+				int shapeID = sketch.getAvailID();
+				sketch.addShape(shapeID, new Polyline(new Point(cmd.getX(), cmd.getY()), new Color(cmd.getRGB())));
+				from.setStrokeID(shapeID);
+				room.broadcast(Command.strokeBegin(shapeID, cmd.getX(), cmd.getY(), cmd.getRGB()));
+			}
+			case Command.POINTS -> {		// more of the stroke, passed on as it comes
+				int shapeID = from.getStrokeID();
+				if (shapeID != -1) {
+					sketch.appendPoints(shapeID, cmd.getPoints());
+					room.broadcast(Command.points(shapeID, cmd.getPoints()));
+				}
+			}
+			case Command.STROKE_END -> {	// stroke done; editors that don't stream get all of it now
+				int shapeID = from.getStrokeID();
+				if (shapeID != -1) {
+					from.setStrokeID(-1);
+					Shape stroke = sketch.getShape(shapeID);
+					if (stroke instanceof Polyline) {
+						Polyline simplified = ((Polyline) stroke).simplified(SketchServer.SIMPLIFY);
+						if (simplified.size() < ((Polyline) stroke).size()) {
+							// replaces the streamed points everywhere (older editors get it whole this way too)
+							sketch.addShape(shapeID, simplified);
+							room.broadcast(Command.shape(shapeID, simplified));
+							stroke = null;
+						}
+					}
+					room.broadcast(Command.strokeEnd(shapeID, stroke instanceof Polyline ? (Polyline) stroke : null));
+				}
+			}
 		}
-		return -1;
 	}
 
 }
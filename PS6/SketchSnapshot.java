@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable point-in-time image of a Sketch, tagged with the version it was taken at.
+ * It's a persistent trie keyed by shape ID (32 children per node), so a change copies only the few nodes on
+ * the path to that ID and shares the rest with the image before it: taking a snapshot is just keeping a reference.
+ * Shapes in an image are never modified; Sketch replaces a shape with a changed copy instead.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class SketchSnapshot {
+	private static final int BITS = 5, WIDTH = 1 << BITS, MASK = WIDTH - 1;
+	public static final SketchSnapshot EMPTY = new SketchSnapshot(new Object[WIDTH], 0, 0, 0);
+
+	private final Object[] root;	// children are Object[] nodes, or Shapes in the bottom level
+	private final int shift;		// how far to shift an ID for its index in the root; 0 when the root is the bottom
+	private final int size;			// number of shapes
+	private final long version;		// number of changes made to the sketch to get here
+
+	private SketchSnapshot(Object[] root, int shift, int size, long version) {
+		this.root = root;
+		this.shift = shift;
+		this.size = size;
+		this.version = version;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the shape with that ID, or null if there isn't one
+	 */
+	public Shape getShape(int ID) {
+		if (ID < 0 || !fits(ID, shift)) return null;
+		Object[] node = root;
+		for (int level = shift; level > 0; level -= BITS) {
+			node = (Object[]) node[(ID >>> level) & MASK];
+			if (node == null) return null;
+		}
+		return (Shape) node[ID & MASK];
+	}
+
+	/**
+	 * @return a new image with the shape under ID (or no shape, if null), one version on from this one
+	 */
+	public SketchSnapshot with(int ID, Shape shape) {
+		if (ID < 0) throw new IllegalArgumentException("negative shape ID " + ID);
+		Object[] newRoot = root;
+		int newShift = shift;
+		while (!fits(ID, newShift)) {
+			// grow a level at the top, with everything so far under its first child
+			Object[] taller = new Object[WIDTH];
+			taller[0] = newRoot;
+			newRoot = taller;
+			newShift += BITS;
+		}
+		Shape old = getShape(ID);
+		int newSize = size + (shape != null ? 1 : 0) - (old != null ? 1 : 0);
+		return new SketchSnapshot(set(newRoot, newShift, ID, shape), newShift, newSize, version + 1);
+	}
+
+	/**
+	 * Builds an image from scratch in one go, e.g. from a checkpoint; quicker than one with() per shape,
+	 * since none of the new nodes are shared yet and so can be filled in place
+	 * @param IDs the shapes' IDs, oldest first
+	 * @param shapes the shapes, in the same order
+	 * @param count how many of them there are
+	 */
+	public static SketchSnapshot of(int[] IDs, Shape[] shapes, int count, long version) {
+		int shift = 0;
+		for (int i = 0; i < count; i++) {
+			while (!fits(IDs[i], shift)) shift += BITS;
+		}
+		Object[] root = new Object[WIDTH];
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			Object[] node = root;
+			for (int level = shift; level > 0; level -= BITS) {
+				int child = (IDs[i] >>> level) & MASK;
+				if (node[child] == null) node[child] = new Object[WIDTH];
+				node = (Object[]) node[child];
+			}
+			if (node[IDs[i] & MASK] == null) size++;
+			node[IDs[i] & MASK] = shapes[i];
+		}
+		return new SketchSnapshot(root, shift, size, version);
+	}
+
+	/**
+	 * @return the same image, but carrying on from the given version (e.g. one received from the server)
+	 */
+	public SketchSnapshot atVersion(long version) {
+		return new SketchSnapshot(root, shift, size, version);
+	}
+
+	/**
+	 * Copies the nodes on the path to ID, with the value at the bottom
+	 */
+	private static Object[] set(Object[] node, int level, int ID, Object value) {
+		Object[] copy = node == null ? new Object[WIDTH] : node.clone();
+		int i = (ID >>> level) & MASK;
+		copy[i] = level == 0 ? value : set((Object[]) copy[i], level - BITS, ID, value);
+		return copy;
+	}
+
+	private static boolean fits(int ID, int shift) {
+		return shift + BITS >= 31 || (ID >>> (shift + BITS)) == 0;
+	}
+
+	/**
+	 * Visits every shape in order of oldest to newest (i.e., bottom to top)
+	 */
+	public void forEach(BiConsumer<Integer, Shape> visit) {
+		forEach(root, shift, 0, visit);
+	}
+
+	private static void forEach(Object[] node, int level, int base, BiConsumer<Integer, Shape> visit) {
+		for (int i = 0; i < WIDTH; i++) {
+			if (node[i] == null) continue;
+			if (level == 0) visit.accept(base | i, (Shape) node[i]);
+			else forEach((Object[]) node[i], level - BITS, base | (i << level), visit);
+		}
+	}
+
+	/**
+	 * @return all IDs of the shapes in order of oldest to newest
+	 */
+	public List<Integer> getIDs() {
+		List<Integer> IDs = new ArrayList<>(size);
+		forEach((ID, shape) -> IDs.add(ID));
+		return IDs;
+	}
+}
@@ -0,0 +1,152 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Uniform grid over the canvas recording which shapes' bounding boxes overlap each cell, so finding the shapes
+ * that might be under a point only looks at the few in that point's cell instead of every shape in the sketch.
+ * Cells are only created once something is in them, so the canvas has no fixed size.
+ * Not thread-safe; Sketch only uses it while holding its own lock.
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class SpatialGrid {
+	private static final int CELL = 64;				// cell width and height, in pixels
+	private static final int MAX_CELLS = 256;		// a shape covering more cells than this is kept in big instead
+	private static final int MAX_AREA_CELLS = 64;	// an area covering more cells than this is quicker to check shape by shape
+
+	private HashMap<Long, Cell> cells = new HashMap<>();			// shapes overlapping each cell, by cell column and row
+	private HashMap<Integer, BoundingBox> boxes = new HashMap<>();	// box each shape was put in under
+	private Cell big = new Cell();									// shapes too big to be worth putting in cells
+
+	/**
+	 * Puts the shape in (or moves it to) the cells its box overlaps
+	 */
+	public void put(int ID, BoundingBox box) {
+		if (box.equals(boxes.get(ID))) return;		// e.g. a stroke that grew without leaving its box
+		remove(ID);
+		boxes.put(ID, box);
+		if (cellCount(box) > MAX_CELLS) {
+			big.add(ID);
+			return;
+		}
+		for (int cx = cellOf(box.x1); cx <= cellOf(box.x2); cx++) {
+			for (int cy = cellOf(box.y1); cy <= cellOf(box.y2); cy++) {
+				cells.computeIfAbsent(key(cx, cy), k -> new Cell()).add(ID);
+			}
+		}
+	}
+
+	/**
+	 * Takes the shape out of every cell it's in, if any
+	 */
+	public void remove(int ID) {
+		BoundingBox box = boxes.remove(ID);
+		if (box == null) return;
+		if (cellCount(box) > MAX_CELLS) {
+			big.remove(ID);
+			return;
+		}
+		for (int cx = cellOf(box.x1); cx <= cellOf(box.x2); cx++) {
+			for (int cy = cellOf(box.y1); cy <= cellOf(box.y2); cy++) {
+				Cell cell = cells.get(key(cx, cy));
+				if (cell != null && cell.remove(ID) && cell.size == 0) cells.remove(key(cx, cy));
+			}
+		}
+	}
+
+	/**
+	 * @return IDs of the shapes whose boxes contain the point, lowest (oldest) first
+	 */
+	public int[] candidates(int x, int y) {
+		Cell cell = cells.get(key(cellOf(x), cellOf(y)));
+		int[] found = new int[(cell != null ? cell.size : 0) + big.size];
+		int n = 0;
+		if (cell != null) {
+			for (int i = 0; i < cell.size; i++) {
+				if (boxes.get(cell.IDs[i]).contains(x, y)) found[n++] = cell.IDs[i];
+			}
+		}
+		for (int i = 0; i < big.size; i++) {
+			if (boxes.get(big.IDs[i]).contains(x, y)) found[n++] = big.IDs[i];
+		}
+		found = Arrays.copyOf(found, n);
+		Arrays.sort(found);
+		return found;
+	}
+
+	/**
+	 * @return IDs of the shapes whose boxes overlap the area, lowest (oldest) first,
+	 * or null if the area is so big that it's quicker to check every shape
+	 */
+	public int[] overlapping(BoundingBox area) {
+		if (cellCount(area) > MAX_AREA_CELLS) return null;
+		int[] found = new int[16];
+		int n = 0;
+		for (int cx = cellOf(area.x1); cx <= cellOf(area.x2); cx++) {
+			for (int cy = cellOf(area.y1); cy <= cellOf(area.y2); cy++) {
+				Cell cell = cells.get(key(cx, cy));
+				if (cell == null) continue;
+				for (int i = 0; i < cell.size; i++) {
+					if (n == found.length) found = Arrays.copyOf(found, 2 * n);
+					found[n++] = cell.IDs[i];
+				}
+			}
+		}
+		for (int i = 0; i < big.size; i++) {
+			if (n == found.length) found = Arrays.copyOf(found, 2 * n);
+			found[n++] = big.IDs[i];
+		}
+		// a shape over several cells was found in each, so sort to put the copies next to each other and keep one
+		Arrays.sort(found, 0, n);
+		int kept = 0;
+		for (int i = 0; i < n; i++) {
+			if ((kept == 0 || found[i] != found[kept-1]) && boxes.get(found[i]).intersects(area)) found[kept++] = found[i];
+		}
+		return Arrays.copyOf(found, kept);
+	}
+
+	public int size() {
+		return boxes.size();
+	}
+
+	/**
+	 * @return the column (or row) of the cell the x (or y) coordinate is in
+	 */
+	private static int cellOf(int coordinate) {
+		return Math.floorDiv(coordinate, CELL);
+	}
+
+	private static long cellCount(BoundingBox box) {
+		return (long) (cellOf(box.x2) - cellOf(box.x1) + 1) * (cellOf(box.y2) - cellOf(box.y1) + 1);
+	}
+
+	private static long key(int cx, int cy) {
+		return ((long) cx << 32) | (cy & 0xffffffffL);
+	}
+
+	/**
+	 * The IDs in one cell, unordered
+	 */
+	private static class Cell {
+		int[] IDs = new int[4];
+		int size = 0;
+
+		void add(int ID) {
+			if (size == IDs.length) IDs = Arrays.copyOf(IDs, 2 * size);
+			IDs[size++] = ID;
+		}
+
+		/**
+		 * @return whether the ID was there to remove
+		 */
+		boolean remove(int ID) {
+			for (int i = 0; i < size; i++) {
+				if (IDs[i] == ID) {
+					IDs[i] = IDs[--size];		// order doesn't matter, so fill the gap with the last one
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+import java.awt.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Microbenchmarks of changing the order shapes are drawn in, SketchEC's bringShapeToTop and pushShapeBack, at a range
+ * of sketch sizes. Measured as PS6's Benchmarks does: warmup iterations, then measured ones of about a fixed time each,
+ * reporting time and bytes allocated per operation. And as there, each benchmark is run at each size in a JVM of its own,
+ * so neither one's JIT profile nor its garbage skews the other's.
+ *
+ * Usage: java BenchmarksEC, configurable with -Dbench.sizes=10,1000,100000,1000000 (shapes in the sketch),
+ * -Dbench.warmup=... -Dbench.iterations=... (how many of each), -Dbench.millis=... (how long an iteration runs),
+ * -Dbench.fork=false (run both in this JVM)
+ *
+ * @author Selena Zhou, CS10 23W, PS6
+ */
+public class BenchmarksEC {
+	private static final int[] SIZES = Arrays.stream(System.getProperty("bench.sizes", "10,1000,100000,1000000").split(","))
+			.mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+	private static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+	private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+	private static final long MILLIS = Integer.getInteger("bench.millis", 500);
+	private static final boolean FORK = Boolean.parseBoolean(System.getProperty("bench.fork", "true"));
+	private static final String FORKED = "--forked";	// first argument of a JVM started to run just one benchmark
+	private static final String[] NAMES = {"SketchEC.bringShapeToTop", "SketchEC.pushShapeBack"};
+
+	private static final int BATCH = 16;		// operations per batch
+	private static final int POOL = 4096;		// shapes picked from, a batch's worth at a time, so they're all over the order
+
+	private static volatile long sink;			// where results go, so the JIT can't throw the work away
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 3 && args[0].equals(FORKED)) {
+			run(args[1], Integer.parseInt(args[2]));
+			return;
+		}
+		System.out.println(String.format("%-30s %-14s %14s %10s %12s", "benchmark", "param", "ns/op", "+-", "B/op"));
+		for (int size : SIZES) {
+			for (String name : NAMES) {
+				if (FORK) fork(name, size);
+				else run(name, size);
+			}
+		}
+	}
+
+	/**
+	 * Runs just the one benchmark at size in a new JVM (same java, classpath and JVM options), which prints its results here
+	 */
+	private static void fork(String name, int size) throws Exception {
+		List<String> command = new ArrayList<>();
+		command.add(ProcessHandle.current().info().command()
+				.orElse(Paths.get(System.getProperty("java.home"), "bin", "java").toString()));
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.addAll(List.of("-cp", System.getProperty("java.class.path"), BenchmarksEC.class.getName(),
+				FORKED, name, Integer.toString(size)));
+		int exit = new ProcessBuilder(command).inheritIO().start().waitFor();
+		if (exit != 0) System.err.println(name + " (" + size + ") failed, exit status " + exit);
+	}
+
+	/**
+	 * Sets up a sketch of the given size and runs the named benchmark on it
+	 */
+	private static void run(String name, int size) {
+		Random random = new Random(42);
+		SketchEC sketch = new SketchEC();
+		for (int i = 0; i < size; i++) {
+			int x = random.nextInt(800), y = random.nextInt(600);
+			sketch.addShape(sketch.getAvailID(), new EllipseEC(x, y, x + 5 + random.nextInt(100), y + 5 + random.nextInt(100),
+					new Color(random.nextInt(0x1000000))));
+		}
+		int[] IDs = new int[POOL];
+		for (int i = 0; i < POOL; i++) {
+			IDs[i] = random.nextInt(size);
+		}
+		measure(name, "size=" + size, sketch, IDs, name.equals(NAMES[0]));
+	}
+
+	/**
+	 * Runs the warmup and measured iterations, each batch moving the next few of the given shapes to the top (or back),
+	 * and prints what it measured
+	 */
+	private static void measure(String name, String param, SketchEC sketch, int[] IDs, boolean toTop) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		double[] nanosPerOp = new double[ITERATIONS];
+		long totalOps = 0, totalNanos = 0, totalBytes = 0;
+		int next = 0;
+		for (int iteration = -WARMUP; iteration < ITERATIONS; iteration++) {
+			long iterationOps = 0, iterationNanos = 0;
+			long end = System.nanoTime() + MILLIS * 1_000_000;
+			do {
+				long bytes = threads.getCurrentThreadAllocatedBytes();
+				long start = System.nanoTime();
+				for (int i = 0; i < BATCH; i++) {
+					if (toTop) sketch.bringShapeToTop(IDs[next + i]);
+					else sketch.pushShapeBack(IDs[next + i]);
+				}
+				iterationNanos += System.nanoTime() - start;
+				if (iteration >= 0) totalBytes += threads.getCurrentThreadAllocatedBytes() - bytes;
+				iterationOps += BATCH;
+				next = (next + BATCH) % POOL;
+			} while (System.nanoTime() < end);
+			if (iteration >= 0) {
+				nanosPerOp[iteration] = (double) iterationNanos / iterationOps;
+				totalOps += iterationOps;
+				totalNanos += iterationNanos;
+			}
+		}
+		sink = sketch.getAllIDsOldestToNewest().get(0);
+
+		double mean = (double) totalNanos / totalOps, spread = 0;
+		for (double nanos : nanosPerOp) {
+			spread += (nanos - mean) * (nanos - mean);
+		}
+		spread = Math.sqrt(spread / Math.max(1, ITERATIONS - 1));
+		System.out.println(String.format("%-30s %-14s %14.1f %10.1f %12.1f", name, param, mean, spread, (double) totalBytes / totalOps));
+	}
+}